@@ -174,6 +174,65 @@ public class MunroPaterson<T> {
                 upperElement);
     }
 
+    /**
+     * Number of elements kept per level, bigger levels give tighter bounds for the price of memory.
+     */
+    public MunroPaterson<T> withLevelSize(int levelSize) {
+        Preconditions.checkArgument(levelSize >= 2 && levelSize % 2 == 0, "Level size " + levelSize);
+        this.levelSize = levelSize;
+        return this;
+    }
+
+    /**
+     * Equi-depth quantiles in a single pass: element i of the result has rank i * n / count in the stream,
+     * up to {@link #rankError(long)}. The first element is the minimum of the stream, empty stream gives empty list.
+     */
+    public List<T> findQuantiles(Iterable<T> stream, int count) {
+        Preconditions.checkArgument(count > 0, "Quantiles count " + count);
+        ArrayList<OrderedElement<T>> current = new ArrayList<>(levelSize);
+        List<ArrayList<OrderedElement<T>>> levels = new ArrayList<>();
+        long elementOrder = 0;
+        OrderedElement<T> mostLowerElement = null;
+        OrderedElement<T> mostUpperElement = null;
+        for (T unorderedElement : stream) {
+            OrderedElement<T> element = new OrderedElement<>(unorderedElement, elementOrder++);
+            mostLowerElement = min(mostLowerElement, element);
+            mostUpperElement = max(mostUpperElement, element);
+            if (isLevelFull(current)) {
+                current = mergeUp(current, levels);
+            }
+            current.add(element);
+        }
+        List<T> quantiles = new ArrayList<>(count);
+        if (elementOrder == 0) {
+            return quantiles;
+        }
+        finalizeTree(current, levels);
+        List<OrderedElement<T>> upperLevel = levels.get(levels.size() - 1);
+        long weight = powerOfTwo(levels.size() - 1);
+        quantiles.add(mostLowerElement.getElement());
+        for (int i = 1; i < count; i++) {
+            long kOrder = i * elementOrder / count;
+            // the k-th element lies between upper level elements kOrder / weight and (levels - 1) positions later
+            int index = (int) (kOrder / weight) + (levels.size() - 1) / 2;
+            OrderedElement<T> element = index < upperLevel.size() ? upperLevel.get(index) : infinity;
+            quantiles.add(element.isInfinity() ? mostUpperElement.getElement() : element.getElement());
+        }
+        return quantiles;
+    }
+
+    /**
+     * Bound of the distance between the rank a quantile of {@link #findQuantiles} should have and the rank it has
+     * for a stream of the given size.
+     */
+    public long rankError(long streamSize) {
+        int levels = 1;
+        while (powerOfTwo(levels - 1) * levelSize < streamSize) {
+            levels++;
+        }
+        return levels == 1 ? 0 : levels * powerOfTwo(levels - 1);
+    }
+
     public static long powerOfTwo(int i) {
         return  1L << i;
     }
@@ -5,6 +5,7 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -90,6 +91,27 @@ public class MunroPatersonTest {
         testOrderStatistics(randomList, testStep);
     }
 
+    @Test
+    public void testFindQuantiles() throws Exception {
+        int testSize = 100000;
+        int count = 16;
+        ArrayList<Long> randomList = new ArrayList<>();
+        for (int i = 0; i < testSize; i++) {
+            randomList.add(Long.valueOf(i));
+        }
+        Collections.shuffle(randomList, new Random(42));
+        MunroPaterson<Long> searcher = MunroPaterson.<Long>create().withLevelSize(1024);
+        List<Long> quantiles = searcher.findQuantiles(randomList, count);
+        assertEquals(count, quantiles.size());
+        assertEquals(Long.valueOf(0), quantiles.get(0));
+        long rankError = searcher.rankError(testSize);
+        assertTrue(rankError < testSize / count);
+        for (int i = 1; i < count; i++) {
+            assertTrue(quantiles.get(i) + " " + i, Math.abs(quantiles.get(i) - (long) i * testSize / count) <= rankError);
+        }
+        assertTrue(searcher.findQuantiles(new ArrayList<Long>(), count).isEmpty());
+    }
+
     @Test
     public void testPowerOfTwo() {
         assertEquals(1L, MunroPaterson.powerOfTwo(0));
@@ -72,6 +72,59 @@ public class Utils {
         throw new IndexOutOfBoundsException( " " + smallBuffers.size() + " " + smallBufferSize);
     }
 
+    /**
+     * Byte offset in the pool right after the buffers of {@link #sliceListBuffersPool} with the same arguments,
+     * leftovers it skips at the ends of big buffers are before it. The tail from it does not overlap them.
+     */
+    public static long sliceListBuffersPoolEnd(List<ByteBuffer> buffersPool, int smallBufferSize, int buffersCount) {
+        long offset = 0;
+        int count = 0;
+        for (ByteBuffer bigBuffer : buffersPool) {
+            int position = 0;
+            while (count < buffersCount && bigBuffer.capacity() - position > smallBufferSize) {
+                position += smallBufferSize;
+                count++;
+            }
+            if (count == buffersCount) {
+                return offset + position;
+            }
+            offset += bigBuffer.capacity();
+        }
+        throw new IndexOutOfBoundsException( " " + count + " " + smallBufferSize);
+    }
+
+    public static List<ByteBuffer> sliceListBuffersPoolTail(List<ByteBuffer> buffersPool, long skipBytes) {
+        return sliceListBuffersPoolRange(buffersPool, skipBytes, capacityInBytes(buffersPool) - skipBytes);
+    }
+
+    public static List<ByteBuffer> sliceListBuffersPoolRange(List<ByteBuffer> buffersPool, long fromByte, long length) {
+        List<ByteBuffer> range = new ArrayList<>();
+        for (ByteBuffer bigBuffer : buffersPool) {
+            if (length <= 0) {
+                break;
+            }
+            if (fromByte >= bigBuffer.capacity()) {
+                fromByte -= bigBuffer.capacity();
+                continue;
+            }
+            ByteBuffer duplicate = bigBuffer.duplicate();
+            duplicate.limit((int) Math.min(duplicate.capacity(), fromByte + length));
+            duplicate.position((int) fromByte);
+            range.add(duplicate.slice());
+            length -= duplicate.remaining();
+            fromByte = 0;
+        }
+        return range;
+    }
+
+    public static long capacityInBytes(List<ByteBuffer> buffersPool) {
+        long capacity = 0;
+        for (ByteBuffer buffer : buffersPool) {
+            capacity += buffer.capacity();
+        }
+        return capacity;
+    }
+
     public static List<ByteBuffer> buildBuffersPool(long capacity) {
         List<ByteBuffer> byteBuffersPool = new ArrayList<>();
         int n = (int) (capacity / Integer.MAX_VALUE);
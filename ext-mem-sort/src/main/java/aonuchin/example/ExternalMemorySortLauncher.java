@@ -4,8 +4,14 @@ import aonuchin.Utils;
 import aonuchin.nio.ByteBuffersList;
 import aonuchin.nio.ChannelIterable;
 import aonuchin.nio.ChannelIterable.Builder;
+import aonuchin.nio.IoBackend;
+import aonuchin.nio.LongBuffersList;
 import aonuchin.nio.LongSerializer;
+import aonuchin.nio.SpillStore;
+import aonuchin.sort.BucketStatistics;
 import aonuchin.sort.ExternalMemorySort;
+import aonuchin.sort.ExternalMemorySort.Pivots;
+import aonuchin.sort.ExternalMemorySort.Strategy;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Ordering;
 import org.apache.commons.cli.CommandLine;
@@ -19,6 +25,7 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class ExternalMemorySortLauncher {
@@ -29,7 +36,22 @@ public class ExternalMemorySortLauncher {
         options.addOption("b", "block-size", true, "size in bytes of i/o block");
         options.addOption("m", "memory-size", true, "size in bytes of memory buffer");
         options.addOption("c", "split-count", true, "number of parts file should be splitted");
-        options.addOption("t", "tmp", true, "directory for temporary files");
+        options.addOption("t", "tmp", true, "comma separated directories for temporary files, ideally on different disks");
+        options.addOption("tp", "tmp-placement", true,
+                "choice of temporary directory for a bucket: round_robin (default) or free_space");
+        options.addOption("s", "strategy", true, "sorting strategy: distribution (default) or merge");
+        options.addOption("w", "sort-threads", true, "number of buckets sorted concurrently");
+        options.addOption("io", "io-backend", true, "reading of input and temporary files: channel (default) or mmap");
+        options.addOption("pt", "partition-threads", true, "number of classifier and writer threads of partitioning pass");
+        options.addOption("qs", "quicksort", false, "sorts memory loads by quicksort even if keys can be radix sorted");
+        options.addOption("z", "compress-spills", false, "compresses temporary files of distribution sort");
+        options.addOption("hy", "hybrid", false, "keeps buckets fitting their writer buffer in memory");
+        options.addOption("pv", "pivots", true, "pivots of distribution sort: sample (default), quantiles or first_load");
+        options.addOption("k", "top-k", true, "writes only the given number of smallest elements, sorted");
+        options.addOption("r", "select", true, "prints the element of the given rank, counted from 0, instead of sorting");
+        options.addOption("u", "distinct", false, "writes one of equal elements only");
+        options.addOption("mi", "merge-into", true,
+                "sorted file the input is merged into, sorting the input only. It may be the output itself");
         options.addOption("dt", "generate-test-data", true, "Generates test data");
         options.addOption("ts", "text-sort", false, "Sorts text file with a number per line");
         options.addOption("t2b", "text-to-binary", false, "converts text to binary file");
@@ -59,16 +81,34 @@ public class ExternalMemorySortLauncher {
         bufferCount = Math.max(2, bufferCount);
         bufferCount = Math.min(maxBufferCount, bufferCount);
         Path inputPath = Paths.get(arguments.getOptionValue("i"));
-        Path tmpDir = Paths.get(arguments.getOptionValue("t", "./sort-tmp"));
+        List<Path> tmpDirs = new ArrayList<>();
+        for (String tmpDir : arguments.getOptionValue("t", "./sort-tmp").split(",")) {
+            tmpDirs.add(Paths.get(tmpDir));
+        }
+        SpillStore.Placement placement = SpillStore.Placement.valueOf(
+                arguments.getOptionValue("tp", "round_robin").toUpperCase());
+        Strategy strategy = Strategy.valueOf(arguments.getOptionValue("s", "distribution").toUpperCase());
+        int sortThreads = Integer.parseInt(arguments.getOptionValue("w", "1"));
+        int partitionThreads = Integer.parseInt(arguments.getOptionValue("pt", "0"));
+        boolean radixSort = !arguments.hasOption("qs");
+        boolean compressSpills = arguments.hasOption("z");
+        boolean residentBuckets = arguments.hasOption("hy");
+        Pivots pivots = Pivots.valueOf(arguments.getOptionValue("pv", "sample").toUpperCase());
         Preconditions.checkArgument(Files.exists(inputPath));
-        FileUtils.deleteDirectory(tmpDir.toFile());
-        Files.createDirectories(tmpDir);
+        for (Path tmpDir : tmpDirs) {
+            FileUtils.deleteDirectory(tmpDir.toFile());
+            Files.createDirectories(tmpDir);
+        }
         List<ByteBuffer> bigBuffer = Utils.buildBuffersPool(bigBufferSize);
         ByteBuffer readBuffer = ByteBuffer.allocateDirect(bufferSize);
         LongSerializer serializer = new LongSerializer();
-        ChannelIterable.Builder<Long> channelIterator = new Builder<>(readBuffer, serializer);
-        ByteBuffersList<Long> list = new ByteBuffersList<>(bigBuffer, serializer);
-        Files.deleteIfExists(outputPath);
+        IoBackend backend = IoBackend.valueOf(arguments.getOptionValue("io", "channel").toUpperCase());
+        ChannelIterable.Builder<Long> channelIterator = new Builder<>(readBuffer, serializer, backend);
+        ByteBuffersList<Long> list = new LongBuffersList(bigBuffer);
+        Path mergeIntoPath = arguments.hasOption("mi") ? Paths.get(arguments.getOptionValue("mi")) : null;
+        if (!outputPath.equals(mergeIntoPath)) {
+            Files.deleteIfExists(outputPath);
+        }
 
         if (arguments.hasOption("t2b")) {
             FileTransformer.textToBinaryNumbers(inputPath, outputPath, readBuffer);
@@ -88,13 +128,46 @@ public class ExternalMemorySortLauncher {
             Files.deleteIfExists(binOutputPath);
 
             FileTransformer.textToBinaryNumbers(inputPath, binInputPath, readBuffer);
-            ExternalMemorySort<Long> sortByDustribution = new ExternalMemorySort<>(channelIterator, list, bufferCount, tmpDir);
+            ExternalMemorySort<Long> sortByDustribution = new ExternalMemorySort<>(channelIterator, list, bufferCount, tmpDirs);
+            sortByDustribution.withStrategy(strategy).withSortThreads(sortThreads).withPartitionThreads(partitionThreads)
+                .withRadixSort(radixSort).withCompressedSpills(compressSpills).withPlacement(placement)
+                .withResidentBuckets(residentBuckets).withPivots(pivots);
             sortByDustribution.sort(binInputPath, binOutputPath, Ordering.<Long>natural());
+            printBucketStatistics(sortByDustribution.getBucketStatistics());
             FileTransformer.binaryNumbersToText(binOutputPath, outputPath, readBuffer);
             return;
         }
-        ExternalMemorySort<Long> sort = new ExternalMemorySort<>(channelIterator, list, bufferCount, tmpDir);
-        sort.sort(inputPath, outputPath, Ordering.<Long>natural());
+        ExternalMemorySort<Long> sort = new ExternalMemorySort<>(channelIterator, list, bufferCount, tmpDirs);
+        sort.withStrategy(strategy).withSortThreads(sortThreads).withPartitionThreads(partitionThreads)
+                .withRadixSort(radixSort).withCompressedSpills(compressSpills).withPlacement(placement)
+                .withResidentBuckets(residentBuckets).withPivots(pivots);
+        if (arguments.hasOption("u")) {
+            sort.withDistinct();
+        }
+        if (arguments.hasOption("r")) {
+            long rank = Long.parseLong(arguments.getOptionValue("r"));
+            System.out.println("Element of rank " + rank + ": " + sort.select(inputPath, rank, Ordering.<Long>natural()));
+        } else if (mergeIntoPath != null) {
+            sort.mergeInto(mergeIntoPath, inputPath, outputPath, Ordering.<Long>natural());
+        } else if (arguments.hasOption("k")) {
+            sort.sortPrefix(inputPath, outputPath, Long.parseLong(arguments.getOptionValue("k")), Ordering.<Long>natural());
+        } else {
+            sort.sort(inputPath, outputPath, Ordering.<Long>natural());
+        }
+        printBucketStatistics(sort.getBucketStatistics());
+
+    }
 
+    private static void printBucketStatistics(List<BucketStatistics> statistics) {
+        int heavyHitters = 0;
+        int maxDepth = 0;
+        long maxSize = 0;
+        for (BucketStatistics bucket : statistics) {
+            heavyHitters += bucket.isHeavyHitter() ? 1 : 0;
+            maxDepth = Math.max(maxDepth, bucket.getDepth());
+            maxSize = bucket.isHeavyHitter() ? maxSize : Math.max(maxSize, bucket.getSize());
+        }
+        System.out.println("Buckets: " + statistics.size() + " heavy hitters: " + heavyHitters +
+                " max depth: " + maxDepth + " max sorted bucket size: " + maxSize);
     }
 }
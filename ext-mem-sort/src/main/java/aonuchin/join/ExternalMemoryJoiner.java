@@ -1,4 +1,424 @@
 package aonuchin.join;
 
-public class ExternalMemoryJoiner {
+import aonuchin.Utils;
+import aonuchin.nio.ByteBuffersList;
+import aonuchin.nio.ChannelIterable;
+import aonuchin.nio.ChannelWriter;
+import aonuchin.nio.ElementSerializer;
+import aonuchin.nio.SpillStore;
+import aonuchin.sort.ExternalMemorySort;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Join of two files on a key. Sort-merge join sorts the inputs by their external memory sorts into temporary files
+ * unless they are sorted already, then both are read once, group of right elements with the same key at a time.
+ * Grace hash join does not sort, see {@link Algorithm#GRACE_HASH}.
+ */
+public class ExternalMemoryJoiner<L, R> {
+    public enum Algorithm {
+        SORT_MERGE,
+        /**
+         * Both inputs are partitioned by hash of the key in one pass each, unless the right one fits memory,
+         * then the right part of every partition is loaded into an off-heap hash table and probed by the left part.
+         * Partitions whose right part does not fit are partitioned again, up to a few levels, the rest is joined
+         * a table load at a time. Inputs need key hashers.
+         */
+        GRACE_HASH
+    }
+
+    public enum JoinType {
+        /**
+         * Every pair of left and right elements with equal keys.
+         */
+        INNER,
+        /**
+         * Pairs of inner join and left elements without a match, paired with null.
+         */
+        LEFT_OUTER,
+        /**
+         * Left elements having a match, each once, paired with the first of right elements matching it.
+         */
+        SEMI
+    }
+
+    private static final int MAX_HASH_DEPTH = 4;
+
+    /**
+     * File to join with the way it is read and sorted. Readers of the two inputs must not share a buffer.
+     */
+    public static class Input<E> {
+        private final Path path;
+        private final ChannelIterable.Builder<E> reader;
+        private final Comparator<E> order;
+        private ExternalMemorySort<E> sort = null;
+        private JoinKeyHasher<E> hasher = null;
+
+        /**
+         * @param order order of the file consistent with the join key, elements with equal keys may come in any order
+         */
+        public Input(Path path, ChannelIterable.Builder<E> reader, Comparator<E> order) {
+            this.path = path;
+            this.reader = reader;
+            this.order = order;
+        }
+
+        /**
+         * Input is sorted by the given sort before being joined, it is expected to be sorted by its order otherwise.
+         */
+        public Input<E> withSort(ExternalMemorySort<E> sort) {
+            this.sort = sort;
+            return this;
+        }
+
+        /**
+         * Hash of the key for hash join.
+         */
+        public Input<E> withKeyHasher(JoinKeyHasher<E> hasher) {
+            this.hasher = hasher;
+            return this;
+        }
+    }
+
+    private final Input<L> left;
+    private final Input<R> right;
+    private final JoinKeyComparator<L, R> keyComparator;
+    private final ByteBuffersList<R> group;
+    private final Path tmpDir;
+    private JoinType joinType = JoinType.INNER;
+    private Algorithm algorithm = Algorithm.SORT_MERGE;
+
+    /**
+     * @param group memory for a group of right elements with the same key, larger groups are spilled to a temporary
+     *              file and read back for every left element of the key. It may be memory of the sorts of the inputs,
+     *              sorting is over before the merge. Hash join takes it for partition writers and hash tables
+     */
+    public ExternalMemoryJoiner(Input<L> left, Input<R> right, JoinKeyComparator<L, R> keyComparator,
+                                ByteBuffersList<R> group, Path tmpDir) {
+        Preconditions.checkArgument(Files.exists(tmpDir) && Files.isDirectory(tmpDir), tmpDir);
+        Preconditions.checkArgument(group.capacity() > 0, "No memory for a group");
+        this.left = left;
+        this.right = right;
+        this.keyComparator = keyComparator;
+        this.group = group;
+        this.tmpDir = tmpDir;
+    }
+
+    public ExternalMemoryJoiner<L, R> withJoinType(JoinType joinType) {
+        this.joinType = joinType;
+        return this;
+    }
+
+    public ExternalMemoryJoiner<L, R> withAlgorithm(Algorithm algorithm) {
+        this.algorithm = algorithm;
+        return this;
+    }
+
+    /**
+     * Temporary files get unique names in the temporary directory, so that joins may share it.
+     */
+    public void join(JoinConsumer<L, R> consumer) throws IOException {
+        if (algorithm == Algorithm.GRACE_HASH) {
+            Preconditions.checkState(left.hasher != null && right.hasher != null, "Hash join needs key hashers");
+            try (SpillStore spillStore = new SpillStore(Files.createTempFile(tmpDir, "join-spill-store-", ".tmp"),
+                    right.reader.bufferSize(), 0)) {
+                new GraceHashJoin(spillStore, consumer).join(new Partition(null, null), 0);
+            }
+            return;
+        }
+        Path leftPath = null;
+        Path rightPath = null;
+        Path spillPath = null;
+        try {
+            leftPath = sorted(left, "join-left-");
+            rightPath = sorted(right, "join-right-");
+            spillPath = Files.createTempFile(tmpDir, "join-group-", ".tmp");
+            try (ChannelIterable<L> leftElements = left.reader.iterateOverFile(leftPath);
+                 ChannelIterable<R> rightElements = right.reader.iterateOverFile(rightPath);
+                 FileChannel spill = FileChannel.open(spillPath, READ, WRITE, TRUNCATE_EXISTING)) {
+                merge(Iterators.peekingIterator(leftElements.iterator()), Iterators.peekingIterator(rightElements.iterator()),
+                        spill, spillPath, consumer);
+            }
+        } finally {
+            if (spillPath != null) {
+                Files.deleteIfExists(spillPath);
+            }
+            if (leftPath != null && leftPath != left.path) {
+                Files.deleteIfExists(leftPath);
+            }
+            if (rightPath != null && rightPath != right.path) {
+                Files.deleteIfExists(rightPath);
+            }
+        }
+    }
+
+    private <E> Path sorted(Input<E> input, String prefix) throws IOException {
+        if (input.sort == null) {
+            return input.path;
+        }
+        Path sortedPath = Files.createTempFile(tmpDir, prefix, ".tmp");
+        try {
+            input.sort.sort(input.path, sortedPath, input.order);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(sortedPath);
+            throw e;
+        }
+        return sortedPath;
+    }
+
+    private void merge(PeekingIterator<L> lefts, PeekingIterator<R> rights, FileChannel spill, Path spillPath,
+                       JoinConsumer<L, R> consumer) throws IOException {
+        while (lefts.hasNext()) {
+            L leftElement = lefts.peek();
+            while (rights.hasNext() && keyComparator.compare(leftElement, rights.peek()) > 0) {
+                rights.next();
+            }
+            if (!rights.hasNext() || keyComparator.compare(leftElement, rights.peek()) < 0) {
+                lefts.next();
+                if (joinType == JoinType.LEFT_OUTER) {
+                    consumer.accept(leftElement, null);
+                }
+                continue;
+            }
+            R first = rights.peek();
+            if (joinType == JoinType.SEMI) {
+                while (lefts.hasNext() && keyComparator.compare(lefts.peek(), first) == 0) {
+                    consumer.accept(lefts.next(), first);
+                }
+                continue;
+            }
+            Iterable<R> matches = readGroup(leftElement, rights, spill, spillPath);
+            while (lefts.hasNext() && keyComparator.compare(lefts.peek(), first) == 0) {
+                L next = lefts.next();
+                for (R match : matches) {
+                    consumer.accept(next, match);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads right elements matching the left one, into memory if they fit it, to the spill file otherwise.
+     */
+    private Iterable<R> readGroup(L leftElement, PeekingIterator<R> rights, final FileChannel spill,
+                                  final Path spillPath) throws IOException {
+        group.clear();
+        long spillSize = 0;
+        while (rights.hasNext() && keyComparator.compare(leftElement, rights.peek()) == 0) {
+            if (group.size() == group.capacity()) {
+                group.writeToChannel(spill, spillSize);
+                spillSize += (long) group.size() * group.getSerializer().elementSize();
+                group.clear();
+            }
+            group.add(rights.next());
+        }
+        if (spillSize == 0) {
+            return group;
+        }
+        group.writeToChannel(spill, spillSize);
+        spill.truncate(spillSize + (long) group.size() * group.getSerializer().elementSize());
+        group.clear();
+        return new Iterable<R>() {
+            @Override
+            public Iterator<R> iterator() {
+                try {
+                    // memory of the group is free once it is spilled
+                    return new ChannelIterable<>(spill.position(0), group.getBuffersPool().get(0).duplicate(),
+                            group.getSerializer()).iterator();
+                } catch (IOException e) {
+                    throw new RuntimeException("Can not read the group of right elements spilled to " + spillPath, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Parts of the inputs with the same hashes of keys, null parts are the inputs themselves.
+     */
+    private static class Partition {
+        private final SpillStore.Bucket left;
+        private final SpillStore.Bucket right;
+
+        private Partition(SpillStore.Bucket left, SpillStore.Bucket right) {
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    private class GraceHashJoin {
+        private final SpillStore spillStore;
+        private final JoinConsumer<L, R> consumer;
+        private final HashTable<R> table;
+        private final int rightElementSize;
+
+        private GraceHashJoin(SpillStore spillStore, JoinConsumer<L, R> consumer) {
+            this.spillStore = spillStore;
+            this.consumer = consumer;
+            // the table takes the first buffer of the memory, which is all of it unless it is over 2 GB
+            this.table = new HashTable<>(group.getBuffersPool().get(0), right.reader.getSerializer());
+            this.rightElementSize = right.reader.getSerializer().elementSize();
+        }
+
+        private void join(Partition partition, int depth) throws IOException {
+            long rightSize = partition.right == null ? Files.size(right.path) : partition.right.size();
+            long maxFanOut = group.capacityInBytes() / right.reader.bufferSize() - 1;
+            if (rightSize / rightElementSize <= table.capacity() || depth == MAX_HASH_DEPTH || maxFanOut < 2) {
+                joinInMemory(partition);
+                return;
+            }
+            int fanOut = (int) Math.min(maxFanOut, 2 * (rightSize / rightElementSize / table.capacity() + 1));
+            List<SpillStore.Bucket> lefts;
+            List<SpillStore.Bucket> rights;
+            try (ChannelIterable<L> leftElements = openLeft(partition)) {
+                lefts = partition(leftElements, left.reader.getSerializer(), left.hasher, fanOut, depth);
+            }
+            try (ChannelIterable<R> rightElements = openRight(partition)) {
+                rights = partition(rightElements, right.reader.getSerializer(), right.hasher, fanOut, depth);
+            }
+            free(partition);
+            for (int i = 0; i < fanOut; i++) {
+                Partition child = new Partition(lefts.get(i), rights.get(i));
+                if (child.right.size() == rightSize) {
+                    // keys hash alike, partitioning again would not split them
+                    joinInMemory(child);
+                } else {
+                    join(child, depth + 1);
+                }
+                free(child);
+            }
+        }
+
+        private <E> List<SpillStore.Bucket> partition(ChannelIterable<E> elements, ElementSerializer<E> serializer,
+                                                      JoinKeyHasher<E> hasher, int fanOut, int depth) throws IOException {
+            int bufferSize = right.reader.bufferSize() - right.reader.bufferSize() % serializer.elementSize();
+            List<ByteBuffer> buffers = Utils.sliceListBuffersPool(group.getBuffersPool(), bufferSize, fanOut);
+            List<SpillStore.Bucket> buckets = new ArrayList<>(fanOut);
+            List<ChannelWriter<E>> writers = new ArrayList<>(fanOut);
+            for (int i = 0; i < fanOut; i++) {
+                SpillStore.Bucket bucket = spillStore.newBucket();
+                buckets.add(bucket);
+                writers.add(new ChannelWriter<>(serializer, buffers.get(i), bucket.writer()));
+            }
+            int seed = (depth + 1) * 0x9E3779B9;
+            for (E element : elements) {
+                int mixed = HashTable.mix(hasher.hash(element) + seed) & Integer.MAX_VALUE;
+                writers.get(mixed % fanOut).writeElement(element);
+            }
+            for (ChannelWriter<E> writer : writers) {
+                writer.close();
+            }
+            return buckets;
+        }
+
+        /**
+         * Loads right elements of the partition into the hash table and probes it by the left ones. Right elements
+         * which do not fit are loaded by table loads with a pass over the left elements per load, then left
+         * elements matched by an earlier load are remembered.
+         */
+        private void joinInMemory(Partition partition) throws IOException {
+            try (ChannelIterable<R> rightElements = openRight(partition)) {
+                Iterator<R> rights = rightElements.iterator();
+                BitSet matched = null;
+                boolean first = true;
+                while (first || rights.hasNext()) {
+                    table.clear();
+                    while (rights.hasNext() && table.size() < table.capacity()) {
+                        R element = rights.next();
+                        table.add(element, right.hasher.hash(element));
+                    }
+                    if ((first && !rights.hasNext()) || joinType == JoinType.INNER) {
+                        probe(partition, null);
+                    } else {
+                        if (matched == null) {
+                            // left elements are indexed by int
+                            long leftSize = partition.left == null ? Files.size(left.path) : partition.left.size();
+                            long leftElements = leftSize / left.reader.getSerializer().elementSize();
+                            Preconditions.checkState(leftElements <= Integer.MAX_VALUE,
+                                    "Left part of " + leftElements + " elements is too big to remember their matches");
+                            matched = new BitSet();
+                        }
+                        probe(partition, matched);
+                    }
+                    first = false;
+                }
+                if (matched != null && joinType == JoinType.LEFT_OUTER) {
+                    try (ChannelIterable<L> leftElements = openLeft(partition)) {
+                        int index = 0;
+                        for (L element : leftElements) {
+                            if (!matched.get(index++)) {
+                                consumer.accept(element, null);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param matched left elements matched so far by their indices, null if the table holds all right elements
+         */
+        private void probe(Partition partition, BitSet matched) throws IOException {
+            if (table.size() == 0 && joinType != JoinType.LEFT_OUTER) {
+                return;
+            }
+            try (ChannelIterable<L> leftElements = openLeft(partition)) {
+                int index = -1;
+                for (L element : leftElements) {
+                    index++;
+                    if (matched != null && joinType == JoinType.SEMI && matched.get(index)) {
+                        continue;
+                    }
+                    boolean found = false;
+                    for (int i = table.first(left.hasher.hash(element)); i >= 0; i = table.next(i)) {
+                        R match = table.get(i);
+                        if (keyComparator.compare(element, match) == 0) {
+                            found = true;
+                            consumer.accept(element, match);
+                            if (joinType == JoinType.SEMI) {
+                                break;
+                            }
+                        }
+                    }
+                    if (matched != null && found) {
+                        matched.set(index);
+                    } else if (matched == null && !found && joinType == JoinType.LEFT_OUTER) {
+                        consumer.accept(element, null);
+                    }
+                }
+            }
+        }
+
+        private ChannelIterable<L> openLeft(Partition partition) throws IOException {
+            return partition.left == null ? left.reader.iterateOverFile(left.path)
+                    : left.reader.iterateOverChannel(partition.left.reader());
+        }
+
+        private ChannelIterable<R> openRight(Partition partition) throws IOException {
+            return partition.right == null ? right.reader.iterateOverFile(right.path)
+                    : right.reader.iterateOverChannel(partition.right.reader());
+        }
+
+        private void free(Partition partition) {
+            if (partition.left != null) {
+                partition.left.free();
+                partition.right.free();
+            }
+        }
+    }
 }
@@ -0,0 +1,116 @@
+package aonuchin.join;
+
+import aonuchin.nio.ElementSerializer;
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hash table of fixed size elements inside one byte buffer, nothing is kept on heap. Elements are stored one after
+ * another, each with the index of the next element of the same hash. Slots are open addressed by linear probing and
+ * hold a hash with the last element added under it, so many elements with one key take one slot. There are twice
+ * as many slots as elements at least.
+ */
+class HashTable<E> {
+    private static final int LINK_SIZE = 4;
+    private static final int SLOT_SIZE = 8;
+    private static final int NONE = -1;
+
+    private final ElementSerializer<E> serializer;
+    private final ByteBuffer memory;
+    private final int recordSize;
+    private final int capacity;
+    private final int slotMask;
+    private final int slotsOffset;
+    private int size = 0;
+
+    HashTable(ByteBuffer memory, ElementSerializer<E> serializer) {
+        this.serializer = serializer;
+        this.memory = memory.duplicate();
+        this.memory.clear();
+        this.recordSize = serializer.elementSize() + LINK_SIZE;
+        int maxElements = memory.capacity() / (recordSize + 2 * SLOT_SIZE);
+        Preconditions.checkArgument(maxElements > 0, "No memory for a hash table");
+        int slots = Integer.highestOneBit(2 * maxElements);
+        this.capacity = slots / 2;
+        this.slotMask = slots - 1;
+        this.slotsOffset = capacity * recordSize;
+        clear();
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        for (int slot = 0; slot <= slotMask; slot++) {
+            memory.putInt(slotOffset(slot) + 4, NONE);
+        }
+        size = 0;
+    }
+
+    /**
+     * Returns false if the table is full.
+     */
+    boolean add(E element, int hash) {
+        if (size == capacity) {
+            return false;
+        }
+        int offset = size * recordSize;
+        serializer.writeElement(memory, offset, element);
+        int slot = findSlot(hash);
+        int slotOffset = slotOffset(slot);
+        // empty slot is claimed with no next element, a slot of the hash gets the element as its new head
+        memory.putInt(offset + serializer.elementSize(), memory.getInt(slotOffset + 4));
+        memory.putInt(slotOffset, hash);
+        memory.putInt(slotOffset + 4, size);
+        size++;
+        return true;
+    }
+
+    /**
+     * Index of the last element added with the hash, negative if there is none.
+     */
+    int first(int hash) {
+        return memory.getInt(slotOffset(findSlot(hash)) + 4);
+    }
+
+    /**
+     * Index of the element added before the given one with the same hash, negative if there is none.
+     */
+    int next(int index) {
+        return memory.getInt(index * recordSize + serializer.elementSize());
+    }
+
+    E get(int index) {
+        return serializer.readElement(memory, index * recordSize);
+    }
+
+    private int findSlot(int hash) {
+        int slot = mix(hash) & slotMask;
+        while (memory.getInt(slotOffset(slot) + 4) != NONE && memory.getInt(slotOffset(slot)) != hash) {
+            slot = (slot + 1) & slotMask;
+        }
+        return slot;
+    }
+
+    private int slotOffset(int slot) {
+        return slotsOffset + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Finalizer of murmur3, spreads hashes which differ in high bits only over the slots.
+     */
+    static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,10 @@
+package aonuchin.join;
+
+import java.io.IOException;
+
+/**
+ * Receives joined pairs. Right element is null for a left element without a match in a left outer join.
+ */
+public interface JoinConsumer<L, R> {
+    void accept(L left, R right) throws IOException;
+}
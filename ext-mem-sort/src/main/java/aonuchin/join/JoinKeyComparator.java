@@ -0,0 +1,9 @@
+package aonuchin.join;
+
+/**
+ * Compares join keys of elements of the left and the right inputs. It has to be consistent with the orders
+ * the inputs are sorted by.
+ */
+public interface JoinKeyComparator<L, R> {
+    int compare(L left, R right);
+}
@@ -0,0 +1,8 @@
+package aonuchin.join;
+
+/**
+ * Hash of the join key of an element. Elements of the left and the right inputs with equal keys must have equal hashes.
+ */
+public interface JoinKeyHasher<E> {
+    int hash(E element);
+}
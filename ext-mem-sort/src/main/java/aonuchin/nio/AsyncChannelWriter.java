@@ -0,0 +1,95 @@
+package aonuchin.nio;
+
+import aonuchin.Utils;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Double buffered writer: the buffer is split in two halves, one is filled by producers while the other one
+ * is flushed by the executor. Writing is thread safe.
+ */
+public class AsyncChannelWriter<E> extends ChannelWriter<E> {
+    private final ExecutorService executor;
+    private final ElementSerializer<E> serializer;
+    private ByteBuffer current;
+    private ByteBuffer flushing;
+    private Future<Void> pendingFlush;
+    private boolean flushed = false;
+
+    public AsyncChannelWriter(ElementSerializer<E> serializer, ByteBuffer buffer, WritableByteChannel channel,
+                              ExecutorService executor) throws IOException {
+        super(serializer, buffer, channel);
+        this.serializer = serializer;
+        this.executor = executor;
+        int halfSize = buffer.capacity() / 2 - (buffer.capacity() / 2) % serializer.elementSize();
+        Preconditions.checkArgument(halfSize > 0, "Buffer is too small for double buffering " + buffer.capacity());
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(0).limit(halfSize);
+        current = duplicate.slice();
+        duplicate.position(halfSize).limit(2 * halfSize);
+        flushing = duplicate.slice();
+    }
+
+    @Override
+    public synchronized void writeElement(E element) throws IOException {
+        if (!current.hasRemaining()) {
+            waitForPendingFlush();
+            flushed = true;
+            final ByteBuffer full = current;
+            current = flushing;
+            flushing = full;
+            current.clear();
+            full.flip();
+            pendingFlush = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    while (full.hasRemaining()) {
+                        channel.write(full);
+                    }
+                    return null;
+                }
+            });
+        }
+        Utils.writeElement(serializer, current, element);
+    }
+
+    private void waitForPendingFlush() throws IOException {
+        if (pendingFlush == null) {
+            return;
+        }
+        try {
+            pendingFlush.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pendingFlush = null;
+        }
+    }
+
+    @Override
+    public synchronized ByteBuffer unflushedElements() {
+        return flushed ? null : current.duplicate();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        waitForPendingFlush();
+        current.flip();
+        while (current.hasRemaining()) {
+            channel.write(current);
+        }
+        channel.close();
+    }
+}
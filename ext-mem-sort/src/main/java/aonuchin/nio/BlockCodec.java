@@ -0,0 +1,177 @@
+package aonuchin.nio;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codecs of spill file blocks, see {@link CompressedWriteChannel}.
+ */
+public enum BlockCodec {
+    /**
+     * Zigzag varint of differences between consecutive big endian longs, a few bytes per element of a sorted run.
+     * Block length must be multiple of 8.
+     */
+    DELTA_VARINT {
+        @Override
+        public int maxEncodedLength(int rawLength) {
+            return rawLength / 8 * 10;
+        }
+
+        @Override
+        public int encode(ByteBuffer raw, byte[] encoded, Streams streams) {
+            Preconditions.checkArgument(raw.remaining() % 8 == 0, "Block of longs expected " + raw.remaining());
+            ByteBuffer longs = raw.duplicate().order(ByteOrder.BIG_ENDIAN);
+            int position = 0;
+            long previous = 0;
+            for (int i = longs.position(); i < longs.limit(); i += 8) {
+                long value = longs.getLong(i);
+                long delta = value - previous;
+                long zigzag = (delta << 1) ^ (delta >> 63);
+                while ((zigzag & ~0x7FL) != 0) {
+                    encoded[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+                    zigzag >>>= 7;
+                }
+                encoded[position++] = (byte) zigzag;
+                previous = value;
+            }
+            return position;
+        }
+
+        @Override
+        public void decode(byte[] encoded, int encodedLength, byte[] raw, int rawLength, Streams streams) {
+            int position = 0;
+            long previous = 0;
+            for (int i = 0; i < rawLength; i += 8) {
+                long zigzag = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = encoded[position++];
+                    zigzag |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                long value = previous + ((zigzag >>> 1) ^ -(zigzag & 1));
+                previous = value;
+                for (int k = 7; k >= 0; k--) {
+                    raw[i + k] = (byte) value;
+                    value >>>= 8;
+                }
+            }
+            Preconditions.checkState(position == encodedLength, "Corrupted block " + position + " " + encodedLength);
+        }
+    },
+    /**
+     * Deflate at its fastest level, for partitions which are not sorted.
+     */
+    DEFLATE {
+        @Override
+        public int maxEncodedLength(int rawLength) {
+            // zlib compressBound
+            return rawLength + (rawLength >> 12) + (rawLength >> 14) + (rawLength >> 25) + 13;
+        }
+
+        @Override
+        public int encode(ByteBuffer raw, byte[] encoded, Streams streams) {
+            Deflater deflater = streams.deflater();
+            deflater.reset();
+            // deflater takes arrays only, the block is fed through a small one
+            byte[] input = streams.input();
+            ByteBuffer source = raw.duplicate();
+            int length = 0;
+            while (source.hasRemaining()) {
+                int inputLength = Math.min(input.length, source.remaining());
+                source.get(input, 0, inputLength);
+                deflater.setInput(input, 0, inputLength);
+                while (!deflater.needsInput()) {
+                    Preconditions.checkState(length < encoded.length, "Encoded block overflow");
+                    length += deflater.deflate(encoded, length, encoded.length - length);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                Preconditions.checkState(length < encoded.length, "Encoded block overflow");
+                length += deflater.deflate(encoded, length, encoded.length - length);
+            }
+            return length;
+        }
+
+        @Override
+        public void decode(byte[] encoded, int encodedLength, byte[] raw, int rawLength, Streams streams) {
+            Inflater inflater = streams.inflater();
+            inflater.reset();
+            inflater.setInput(encoded, 0, encodedLength);
+            try {
+                int length = 0;
+                while (length < rawLength && !inflater.finished()) {
+                    length += inflater.inflate(raw, length, rawLength - length);
+                }
+                Preconditions.checkState(length == rawLength, "Corrupted block " + length + " " + rawLength);
+            } catch (DataFormatException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Native zlib streams of one channel, created on first use. They hold memory outside of the java heap
+     * until they are closed along with the channel. Deflate input goes through a heap array of
+     * {@link #INPUT_SIZE} bytes per channel.
+     */
+    public static final class Streams implements Closeable {
+        static final int INPUT_SIZE = 4096;
+
+        private Deflater deflater;
+        private Inflater inflater;
+        private byte[] input;
+
+        Deflater deflater() {
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+            }
+            return deflater;
+        }
+
+        byte[] input() {
+            if (input == null) {
+                input = new byte[INPUT_SIZE];
+            }
+            return input;
+        }
+
+        Inflater inflater() {
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            return inflater;
+        }
+
+        @Override
+        public void close() {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        }
+    }
+
+    public abstract int maxEncodedLength(int rawLength);
+
+    /**
+     * Encodes bytes of the raw block from its position to its limit, the position is left as it is.
+     *
+     * @return length of the encoded block
+     */
+    public abstract int encode(ByteBuffer raw, byte[] encoded, Streams streams);
+
+    public abstract void decode(byte[] encoded, int encodedLength, byte[] raw, int rawLength, Streams streams);
+}
@@ -0,0 +1,78 @@
+package aonuchin.nio;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reads a random sample of blocks of a seekable channel, as if they were one stream. The channel is cut into
+ * blocks of the given size, distinct blocks are chosen uniformly by selection sampling (Knuth's algorithm S)
+ * and read in order of their positions, so the source is touched only at the sampled blocks.
+ * Blocks are aligned to elements, the tail shorter than a block is never sampled.
+ */
+public class BlockSamplingChannel implements ReadableByteChannel {
+    private final SeekableByteChannel source;
+    private final int blockSize;
+    private long blocksLeft;
+    private long blocksToSample;
+    private long blockRemaining = 0;
+
+    /**
+     * @param sampleBytes upper bound of bytes to read, rounded down to whole blocks
+     */
+    public BlockSamplingChannel(SeekableByteChannel source, long sampleBytes, int blockSize) throws IOException {
+        Preconditions.checkArgument(blockSize > 0, "Block size " + blockSize);
+        this.source = source;
+        this.blockSize = blockSize;
+        this.blocksLeft = source.size() / blockSize;
+        this.blocksToSample = Math.min(blocksLeft, sampleBytes / blockSize);
+        source.position(0);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (blockRemaining == 0 && !nextBlock()) {
+            return -1;
+        }
+        int limit = dst.limit();
+        dst.limit(dst.position() + (int) Math.min(dst.remaining(), blockRemaining));
+        int n = source.read(dst);
+        dst.limit(limit);
+        Preconditions.checkState(n >= 0, "Sampled channel is truncated");
+        blockRemaining -= n;
+        return n;
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (blocksToSample == 0) {
+            return false;
+        }
+        long skipped = 0;
+        while (ThreadLocalRandom.current().nextLong(blocksLeft) >= blocksToSample) {
+            blocksLeft--;
+            skipped++;
+        }
+        blocksLeft--;
+        blocksToSample--;
+        source.position(source.position() + skipped * blockSize);
+        blockRemaining = blockSize;
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return source.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -4,10 +4,12 @@ import com.google.common.base.Preconditions;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.RandomAccess;
 
@@ -26,6 +28,7 @@ public class ByteBuffersList<E> extends AbstractList<E> implements RandomAccess
     private final List<ByteBuffer> buffersPool;
     private final ElementSerializer<E> serializer;
     private final int capacity;
+    private final int elementsPerBuffer;
     private int size;
 
 
@@ -37,9 +40,28 @@ public class ByteBuffersList<E> extends AbstractList<E> implements RandomAccess
             capacity += buffer.capacity() / serializer.elementSize();
         }
         this.capacity = capacity;
+        this.elementsPerBuffer = uniformElementsPerBuffer();
         clear();
     }
 
+    /**
+     * Number of elements in every buffer when index can be mapped to a buffer by a division, 0 otherwise.
+     */
+    private int uniformElementsPerBuffer() {
+        if (buffersPool.isEmpty()) {
+            return 0;
+        }
+        int elementsPerBuffer = align(buffersPool.get(0).capacity()) / serializer.elementSize();
+        for (int bufferNo = 1; bufferNo < buffersPool.size(); bufferNo++) {
+            int elements = align(buffersPool.get(bufferNo).capacity()) / serializer.elementSize();
+            boolean last = bufferNo == buffersPool.size() - 1;
+            if (last ? elements > elementsPerBuffer : elements != elementsPerBuffer) {
+                return 0;
+            }
+        }
+        return elementsPerBuffer;
+    }
+
     @Override
     public void clear() {
         size = 0;
@@ -50,11 +72,12 @@ public class ByteBuffersList<E> extends AbstractList<E> implements RandomAccess
 
     @Override
     public void add(int index, E element) {
-        Preconditions.checkArgument(index == size, "This version of list allows only adding in the end! " +
-                index + " " + size + " " + capacity);
+        if (index != size) {
+            throw new IllegalArgumentException("This version of list allows only adding in the end! " +
+                    index + " " + size + " " + capacity);
+        }
         checkIndexBounds(index < capacity, index);
-        Address address = addressOfIndex(index);
-        serializer.writeElement(buffersPool.get(address.bufferNo), address.offset, element);
+        serializer.writeElement(bufferOf(index), offsetOf(index), element);
         size++;
     }
 
@@ -77,16 +100,14 @@ public class ByteBuffersList<E> extends AbstractList<E> implements RandomAccess
     @Override
     public E set(int index, E element) {
         E e = get(index);
-        Address address = addressOfIndex(index);
-        serializer.writeElement(buffersPool.get(address.bufferNo), address.offset, element);
+        serializer.writeElement(bufferOf(index), offsetOf(index), element);
         return e;
     }
 
     @Override
     public E get(int index) {
         checkIndexBounds((0 <= index) && (index < size), index);
-        Address address = addressOfIndex(index);
-        return serializer.readElement(buffersPool.get(address.bufferNo), address.offset);
+        return serializer.readElement(bufferOf(index), offsetOf(index));
     }
 
     @Override
@@ -102,6 +123,76 @@ public class ByteBuffersList<E> extends AbstractList<E> implements RandomAccess
         return capacity * (long) serializer.elementSize();
     }
 
+    protected void checkIndexBounds(int index) {
+        checkIndexBounds((0 <= index) && (index < size), index);
+    }
+
+    protected void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Buffer holding the serialized element, no bounds check is made.
+     */
+    public ByteBuffer bufferOf(int index) {
+        if (elementsPerBuffer > 0) {
+            return buffersPool.get(index / elementsPerBuffer);
+        }
+        return buffersPool.get(addressOfIndex(index).bufferNo);
+    }
+
+    /**
+     * Offset of the serialized element inside of its buffer, no bounds check is made.
+     */
+    public int offsetOf(int index) {
+        if (elementsPerBuffer > 0) {
+            return (index % elementsPerBuffer) * serializer.elementSize();
+        }
+        return addressOfIndex(index).offset;
+    }
+
+    /**
+     * Swaps serialized elements byte by byte, nothing is deserialized.
+     */
+    public void swapBytes(int a, int b) {
+        ByteBuffer bufferA = bufferOf(a);
+        ByteBuffer bufferB = bufferOf(b);
+        int offsetA = offsetOf(a);
+        int offsetB = offsetOf(b);
+        int elementSize = serializer.elementSize();
+        int i = 0;
+        for (; i + 8 <= elementSize; i += 8) {
+            long t = bufferA.getLong(offsetA + i);
+            bufferA.putLong(offsetA + i, bufferB.getLong(offsetB + i));
+            bufferB.putLong(offsetB + i, t);
+        }
+        for (; i < elementSize; i++) {
+            byte t = bufferA.get(offsetA + i);
+            bufferA.put(offsetA + i, bufferB.get(offsetB + i));
+            bufferB.put(offsetB + i, t);
+        }
+    }
+
+    /**
+     * Creates list of the same kind over elements already serialized into the buffer,
+     * from its start to its position. Elements are not copied.
+     */
+    public ByteBuffersList<E> viewOf(ByteBuffer elements) {
+        ByteBuffer duplicate = elements.duplicate();
+        duplicate.limit(duplicate.position() - duplicate.position() % serializer.elementSize());
+        duplicate.rewind();
+        ByteBuffersList<E> view = newList(Collections.singletonList(duplicate.slice()));
+        view.setSize(duplicate.limit() / serializer.elementSize());
+        return view;
+    }
+
+    /**
+     * Creates list of the same kind over another pool.
+     */
+    public ByteBuffersList<E> newList(List<ByteBuffer> buffersPool) {
+        return new ByteBuffersList<>(buffersPool, serializer);
+    }
+
     private Address addressOfIndex(int index) {
         long position = index * (long) serializer.elementSize();
         for (int bufferNo = 0; bufferNo < buffersPool.size(); bufferNo++) {
@@ -114,13 +205,25 @@ public class ByteBuffersList<E> extends AbstractList<E> implements RandomAccess
         throw new IndexOutOfBoundsException();
     }
 
+    /**
+     * Address right after the last element, valid for a completely filled list too.
+     */
+    private Address endAddress() {
+        if (size == 0) {
+            return new Address(0, 0);
+        }
+        Address last = addressOfIndex(size - 1);
+        last.offset += serializer.elementSize();
+        return last;
+    }
+
     private int align(int capacity) {
         return capacity - (capacity % serializer.elementSize());
     }
 
     public void writeToChannel(WritableByteChannel channel) throws IOException {
         // asserting that channel is blocking
-        Address endAddress = addressOfIndex(size);
+        Address endAddress = endAddress();
         for (int bufferNo = 0; bufferNo < endAddress.bufferNo; bufferNo++) {
             ByteBuffer buffer = buffersPool.get(bufferNo);
             buffer.limit(align(buffer.capacity()));
@@ -137,28 +240,48 @@ public class ByteBuffersList<E> extends AbstractList<E> implements RandomAccess
         }
     }
 
+    public void writeToChannel(FileChannel channel, long position) throws IOException {
+        Address endAddress = endAddress();
+        for (int bufferNo = 0; bufferNo <= endAddress.bufferNo; bufferNo++) {
+            ByteBuffer buffer = buffersPool.get(bufferNo);
+            buffer.limit(bufferNo < endAddress.bufferNo ? align(buffer.capacity()) : endAddress.offset);
+            buffer.rewind();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Reads the whole channel, which must hold less than the list does.
+     */
     public void readFromChannel(ReadableByteChannel channel) throws IOException {
-        // asserting that channel is blocking
+        Preconditions.checkArgument(fillFromChannel(channel), "Channel does not fit into the list");
+    }
+
+    /**
+     * Reads elements until the list is full or the channel is over.
+     *
+     * @return whether the channel is over, false if it may have more elements than the list holds
+     */
+    public boolean fillFromChannel(ReadableByteChannel channel) throws IOException {
+        ChannelIterable.checkBlocking(channel);
         clear();
         long totalReadBytes = 0;
-        int readBytes = 0;
-        for (ByteBuffer buffer : buffersPool) {
+        boolean over = false;
+        for (int bufferNo = 0; bufferNo < buffersPool.size() && !over; bufferNo++) {
+            ByteBuffer buffer = buffersPool.get(bufferNo);
             buffer.limit(align(buffer.capacity()));
             buffer.rewind();
-            do {
-                readBytes = channel.read(buffer);
-                if (readBytes < 0) {
-                    size = (int) (totalReadBytes / serializer.elementSize());
-                    return;
-                } else {
-                    totalReadBytes += readBytes;
-                }
-            } while (readBytes > 0);
-            Preconditions.checkArgument(totalReadBytes % serializer.elementSize() == 0);
-            Preconditions.checkArgument(buffer.position() == align(buffer.capacity()));
+            while (buffer.hasRemaining() && !over) {
+                int readBytes = channel.read(buffer);
+                over = readBytes < 0;
+                totalReadBytes += Math.max(0, readBytes);
+            }
         }
+        Preconditions.checkArgument(totalReadBytes % serializer.elementSize() == 0);
         size = (int) (totalReadBytes / serializer.elementSize());
-        Preconditions.checkArgument(readBytes < 0);
+        return over;
     }
 
     public ElementSerializer<E> getSerializer() {
@@ -8,22 +8,34 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.file.Path;
 import java.util.Iterator;
 
 public class ChannelIterable<E> implements Iterable<E>, Closeable {
     public static class Builder<E> {
         private final ByteBuffer buffer;
         private final ElementSerializer<E> serializer;
+        private final IoBackend backend;
 
         public Builder(ByteBuffer buffer, ElementSerializer<E> serializer) {
+            this(buffer, serializer, IoBackend.CHANNEL);
+        }
+
+        public Builder(ByteBuffer buffer, ElementSerializer<E> serializer, IoBackend backend) {
             this.buffer = buffer;
             this.serializer = serializer;
+            this.backend = backend;
         }
 
         public ChannelIterable<E> iterateOverChannel(ReadableByteChannel channel) {
             return new ChannelIterable<>(channel, buffer, serializer);
         }
 
+        public ChannelIterable<E> iterateOverFile(Path path) throws IOException {
+            return backend.iterate(path, buffer, serializer);
+        }
+
         public int bufferSize() {
             return buffer.capacity();
         }
@@ -32,12 +44,24 @@ public class ChannelIterable<E> implements Iterable<E>, Closeable {
         public ByteBuffer getBuffer() {
             return buffer;
         }
+
+        public IoBackend getBackend() {
+            return backend;
+        }
+
+        public ElementSerializer<E> getSerializer() {
+            return serializer;
+        }
     }
     private final ReadableByteChannel channel;
     private final ByteBuffer buffer;
-    private final ElementSerializer<E> serializer;
+    protected final ElementSerializer<E> serializer;
 
+    /**
+     * @param channel blocking channel, a read returning no bytes would otherwise be retried forever
+     */
     public ChannelIterable(ReadableByteChannel channel, ByteBuffer buffer, ElementSerializer<E> serializer) {
+        checkBlocking(channel);
         this.channel = channel;
         this.serializer = serializer;
         this.buffer = buffer;
@@ -45,10 +69,32 @@ public class ChannelIterable<E> implements Iterable<E>, Closeable {
         buffer.position(buffer.limit());
     }
 
+    /**
+     * Blocks are filled until they are full or the channel is over, which takes a blocking channel.
+     */
+    public static void checkBlocking(ReadableByteChannel channel) {
+        Preconditions.checkArgument(!(channel instanceof SelectableChannel) || ((SelectableChannel) channel).isBlocking(),
+                "Non-blocking channel " + channel);
+    }
+
     private void setMaxLimit() {
         buffer.limit(buffer.capacity() - (buffer.capacity() % serializer.elementSize()));
     }
 
+    /**
+     * Returns block with the next portion of elements, block without remaining elements means end of channel.
+     */
+    protected ByteBuffer readNextBlock() throws IOException {
+        buffer.rewind();
+        setMaxLimit();
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        }
+        buffer.flip();
+        Preconditions.checkArgument(buffer.limit() % serializer.elementSize() == 0,
+                buffer.limit() + " " + serializer.elementSize());
+        return buffer;
+    }
+
     @Override
     public void close() throws IOException {
         channel.close();
@@ -57,41 +103,21 @@ public class ChannelIterable<E> implements Iterable<E>, Closeable {
     @Override
     public Iterator<E> iterator() {
         return new AbstractIterator<E>() {
-            private boolean endOfChannel = false;
+            private ByteBuffer block = buffer;
 
             @Override
             protected E computeNext() {
-                if (!buffer.hasRemaining()) {
-                    if (endOfChannel) {
-                        return endOfData();
+                if (!block.hasRemaining()) {
+                    try {
+                        block = readNextBlock();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
                     }
-                    buffer.rewind();
-                    setMaxLimit();
-                    int totalReadBytes = 0;
-                    int readBytes;
-                    do {
-                        try {
-                            readBytes = channel.read(buffer);
-                            if (readBytes < 0) {
-                                endOfChannel = true;
-                            } else {
-                                totalReadBytes += readBytes;
-                            }
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    } while (readBytes > 0);
-                    buffer.rewind();
-                    buffer.limit(totalReadBytes);
-                    Preconditions.checkArgument(totalReadBytes % serializer.elementSize() == 0,
-                            totalReadBytes + " " + serializer.elementSize());
-                }
-                if (!buffer.hasRemaining()) {
-                    if (endOfChannel) {
+                    if (!block.hasRemaining()) {
                         return endOfData();
                     }
                 }
-                return Utils.readElement(serializer, buffer);
+                return Utils.readElement(serializer, block);
 
             }
         };
@@ -15,6 +15,7 @@ public class ChannelWriter<E> implements Closeable {
     public final ByteBuffer buffer;
     public final WritableByteChannel channel;
     private final ElementSerializer<E> serializer;
+    private boolean flushed = false;
 
     public ChannelWriter(ElementSerializer<E> serializer, ByteBuffer buffer, WritableByteChannel channel) throws IOException {
         this.buffer = buffer;
@@ -25,15 +26,29 @@ public class ChannelWriter<E> implements Closeable {
 
     public void writeElement(E element) throws IOException {
         if (!buffer.hasRemaining()) {
-            buffer.rewind();
-            while (buffer.hasRemaining()) {
-                channel.write(buffer);
-            }
-            buffer.rewind();
+            flushBuffer();
         }
         Utils.writeElement(serializer, buffer, element);
     }
 
+    protected void flushBuffer() throws IOException {
+        flushed = true;
+        buffer.rewind();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.rewind();
+    }
+
+    /**
+     * Elements written so far, from the start of the returned buffer to its position, if none of them
+     * has reached the channel yet, null otherwise. Lets small outputs stay in memory,
+     * the writer is not used afterwards and need not be closed.
+     */
+    public ByteBuffer unflushedElements() {
+        return flushed ? null : buffer.duplicate();
+    }
+
     @Override
     public void close() throws IOException {
         buffer.limit(buffer.position());
@@ -0,0 +1,83 @@
+package aonuchin.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Decodes blocks written by {@link CompressedWriteChannel}. The encoded and the decoded block are kept
+ * in heap arrays of the channel as big as the biggest block read.
+ */
+public class CompressedReadChannel implements ReadableByteChannel {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(CompressedWriteChannel.HEADER_SIZE);
+    private final BlockCodec.Streams streams = new BlockCodec.Streams();
+    private byte[] encoded = new byte[0];
+    private byte[] raw = new byte[0];
+    private ByteBuffer block = ByteBuffer.allocate(0);
+
+    public CompressedReadChannel(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!block.hasRemaining() && !readBlock()) {
+            return -1;
+        }
+        int length = Math.min(dst.remaining(), block.remaining());
+        ByteBuffer part = block.duplicate();
+        part.limit(part.position() + length);
+        dst.put(part);
+        block.position(block.position() + length);
+        return length;
+    }
+
+    private boolean readBlock() throws IOException {
+        header.clear();
+        if (!readFully(header, true)) {
+            return false;
+        }
+        header.flip();
+        BlockCodec codec = BlockCodec.values()[header.get()];
+        int rawLength = header.getInt();
+        int encodedLength = header.getInt();
+        if (encoded.length < encodedLength) {
+            encoded = new byte[encodedLength];
+        }
+        if (raw.length < rawLength) {
+            raw = new byte[rawLength];
+        }
+        readFully(ByteBuffer.wrap(encoded, 0, encodedLength), false);
+        codec.decode(encoded, encodedLength, raw, rawLength, streams);
+        block = ByteBuffer.wrap(raw, 0, rawLength);
+        return true;
+    }
+
+    /**
+     * @return false if the channel has ended before the first byte and it is allowed
+     */
+    private boolean readFully(ByteBuffer buffer, boolean endAllowed) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (endAllowed && buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Truncated block");
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        streams.close();
+        channel.close();
+    }
+}
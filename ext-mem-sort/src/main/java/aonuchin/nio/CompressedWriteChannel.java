@@ -0,0 +1,73 @@
+package aonuchin.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Encodes every written buffer as a separate block: codec ordinal byte, raw length, encoded length
+ * and encoded bytes. Writers flush their whole buffer at once, so a block is one writer buffer.
+ * Blocks are encoded straight from the written buffer into a heap array of the writing thread,
+ * which is shared by all channels the thread writes to and is as big as the biggest encoded block.
+ * Read such files by {@link CompressedReadChannel}.
+ */
+public class CompressedWriteChannel implements WritableByteChannel {
+    static final int HEADER_SIZE = 9;
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<>();
+
+    private final WritableByteChannel channel;
+    private final BlockCodec codec;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final BlockCodec.Streams streams = new BlockCodec.Streams();
+    private long rawBytesWritten = 0;
+
+    public CompressedWriteChannel(WritableByteChannel channel, BlockCodec codec) {
+        this.channel = channel;
+        this.codec = codec;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        int rawLength = src.remaining();
+        if (rawLength == 0) {
+            return 0;
+        }
+        byte[] encodedBlock = scratch.get();
+        if (encodedBlock == null || encodedBlock.length < codec.maxEncodedLength(rawLength)) {
+            encodedBlock = new byte[Math.max(BlockCodec.DEFLATE.maxEncodedLength(rawLength),
+                    BlockCodec.DELTA_VARINT.maxEncodedLength(rawLength))];
+            scratch.set(encodedBlock);
+        }
+        int encodedLength = codec.encode(src, encodedBlock, streams);
+        src.position(src.limit());
+        header.clear();
+        header.put((byte) codec.ordinal()).putInt(rawLength).putInt(encodedLength).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        ByteBuffer encoded = ByteBuffer.wrap(encodedBlock, 0, encodedLength);
+        while (encoded.hasRemaining()) {
+            channel.write(encoded);
+        }
+        rawBytesWritten += rawLength;
+        return rawLength;
+    }
+
+    /**
+     * Number of bytes before encoding, i.e. size of the data once read back.
+     */
+    public synchronized long rawBytesWritten() {
+        return rawBytesWritten;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        streams.close();
+        channel.close();
+    }
+}
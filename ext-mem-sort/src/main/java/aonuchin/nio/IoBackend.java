@@ -0,0 +1,43 @@
+package aonuchin.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The way input and spill files are read: blocking channel reads into direct buffers,
+ * or memory mapping of the file.
+ */
+public enum IoBackend {
+    CHANNEL {
+        @Override
+        public <E> ChannelIterable<E> iterate(Path path, ByteBuffer buffer, ElementSerializer<E> serializer) throws IOException {
+            return new ChannelIterable<>(Files.newByteChannel(path), buffer, serializer);
+        }
+
+        @Override
+        public ReadableByteChannel open(Path path) throws IOException {
+            return Files.newByteChannel(path);
+        }
+    },
+    MMAP {
+        @Override
+        public <E> ChannelIterable<E> iterate(Path path, ByteBuffer buffer, ElementSerializer<E> serializer) throws IOException {
+            return new MappedFileIterable<>(new MappedReadChannel(path, serializer.elementSize()), serializer);
+        }
+
+        @Override
+        public ReadableByteChannel open(Path path) throws IOException {
+            return new MappedReadChannel(path, 1);
+        }
+    };
+
+    public abstract <E> ChannelIterable<E> iterate(Path path, ByteBuffer buffer, ElementSerializer<E> serializer) throws IOException;
+
+    /**
+     * Opens file for sequential reading.
+     */
+    public abstract ReadableByteChannel open(Path path) throws IOException;
+}
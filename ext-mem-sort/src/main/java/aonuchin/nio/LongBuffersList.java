@@ -0,0 +1,45 @@
+package aonuchin.nio;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * {@link ByteBuffersList} of longs with primitive accessors, elements are read and written
+ * without boxing and without allocation.
+ */
+public class LongBuffersList extends ByteBuffersList<Long> {
+
+    public LongBuffersList(List<ByteBuffer> buffersPool) {
+        super(buffersPool, new LongSerializer());
+    }
+
+    public long getLong(int index) {
+        checkIndexBounds(index);
+        return bufferOf(index).getLong(offsetOf(index));
+    }
+
+    public void setLong(int index, long element) {
+        checkIndexBounds(index);
+        bufferOf(index).putLong(offsetOf(index), element);
+    }
+
+    public void addLong(long element) {
+        int index = size();
+        if (index >= capacity()) {
+            throw new IndexOutOfBoundsException("Index: " + index + " capacity: " + capacity());
+        }
+        bufferOf(index).putLong(offsetOf(index), element);
+        setSize(index + 1);
+    }
+
+    public void swap(int a, int b) {
+        long t = getLong(a);
+        setLong(a, getLong(b));
+        setLong(b, t);
+    }
+
+    @Override
+    public LongBuffersList newList(List<ByteBuffer> buffersPool) {
+        return new LongBuffersList(buffersPool);
+    }
+}
@@ -0,0 +1,19 @@
+package aonuchin.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+public class LongChannelWriter extends ChannelWriter<Long> {
+
+    public LongChannelWriter(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        super(new LongSerializer(), buffer, channel);
+    }
+
+    public void writeLong(long element) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flushBuffer();
+        }
+        buffer.putLong(element);
+    }
+}
@@ -0,0 +1,28 @@
+package aonuchin.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Primitive iteration over blocks of a {@link ChannelIterable} of longs.
+ */
+public class LongCursor {
+    private final ChannelIterable<Long> iterable;
+    private ByteBuffer block;
+
+    public LongCursor(ChannelIterable<Long> iterable) {
+        this.iterable = iterable;
+        this.block = ByteBuffer.allocate(0);
+    }
+
+    public boolean hasNext() throws IOException {
+        if (!block.hasRemaining()) {
+            block = iterable.readNextBlock();
+        }
+        return block.hasRemaining();
+    }
+
+    public long next() {
+        return block.getLong();
+    }
+}
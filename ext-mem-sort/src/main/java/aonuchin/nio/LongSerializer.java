@@ -2,7 +2,19 @@ package aonuchin.nio;
 
 import java.nio.ByteBuffer;
 
-public class LongSerializer implements ElementSerializer<Long> {
+public class LongSerializer implements OrderPreservingSerializer<Long> {
+    public static final RawComparator<Long> NATURAL_ORDER = new RawComparator<Long>() {
+        @Override
+        public int compare(ByteBuffer left, int leftOffset, ByteBuffer right, int rightOffset) {
+            return Long.compare(left.getLong(leftOffset), right.getLong(rightOffset));
+        }
+
+        @Override
+        public int compare(Long left, Long right) {
+            return left.compareTo(right);
+        }
+    };
+
     @Override
     public int elementSize() {
         return 8;
@@ -17,4 +29,16 @@ public class LongSerializer implements ElementSerializer<Long> {
     public Long readElement(ByteBuffer byteBuffer, int offset) {
         return byteBuffer.getLong(offset);
     }
+
+    @Override
+    public int keySize() {
+        return 8;
+    }
+
+    @Override
+    public int keyByte(ByteBuffer byteBuffer, int offset, int byteNo) {
+        int b = byteBuffer.get(offset + byteNo) & 0xFF;
+        // flips sign bit, so that negative numbers go first
+        return byteNo == 0 ? b ^ 0x80 : b;
+    }
 }
@@ -0,0 +1,21 @@
+package aonuchin.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Iterates elements straight out of memory mapped regions of a file, no copy to an i/o buffer is made.
+ */
+public class MappedFileIterable<E> extends ChannelIterable<E> {
+    private final MappedReadChannel channel;
+
+    public MappedFileIterable(MappedReadChannel channel, ElementSerializer<E> serializer) {
+        super(channel, ByteBuffer.allocate(0), serializer);
+        this.channel = channel;
+    }
+
+    @Override
+    protected ByteBuffer readNextBlock() throws IOException {
+        return channel.nextRegion();
+    }
+}
@@ -0,0 +1,119 @@
+package aonuchin.nio;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads file through a sequence of read-only memory mapped regions instead of {@link FileChannel#read}.
+ * Every region holds a whole number of {@code alignment} sized elements.
+ * A region is unmapped as soon as the next one is mapped or the channel is closed, it must not be used afterwards.
+ */
+public class MappedReadChannel implements ReadableByteChannel {
+    public static final int DEFAULT_REGION_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private final int regionSize;
+    private long position = 0;
+    private ByteBuffer region;
+
+    public MappedReadChannel(Path path, int alignment) throws IOException {
+        this(path, alignment, DEFAULT_REGION_SIZE);
+    }
+
+    public MappedReadChannel(Path path, int alignment, int regionSize) throws IOException {
+        Preconditions.checkArgument(alignment > 0 && regionSize >= alignment, alignment + " " + regionSize);
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.regionSize = regionSize - regionSize % alignment;
+    }
+
+    /**
+     * Unmaps the previous region and maps the next one, returns empty buffer at the end of file.
+     */
+    public ByteBuffer nextRegion() throws IOException {
+        releaseRegion();
+        long length = Math.min(regionSize, size - position);
+        if (length <= 0) {
+            region = ByteBuffer.allocate(0);
+            return region;
+        }
+        region = channel.map(MapMode.READ_ONLY, position, length);
+        position += length;
+        return region;
+    }
+
+    /**
+     * Mappings are otherwise held until buffers are collected, which may take longer than the sort.
+     * The region is emptied first, so an iterator still holding it asks for the next one instead of reading it.
+     */
+    private void releaseRegion() {
+        if (region instanceof MappedByteBuffer) {
+            region.position(region.limit());
+            unmap(region);
+        }
+        region = null;
+    }
+
+    /**
+     * Unmaps the buffer through {@code sun.misc.Unsafe.invokeCleaner} of Java 9 and later or the cleaner
+     * of the buffer before, the mapping is left to the collector if neither is accessible.
+     */
+    private static void unmap(ByteBuffer mapped) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                Method cleanerMethod = mapped.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(mapped);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), mapped);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // unmapped when collected
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (region == null || !region.hasRemaining()) {
+            nextRegion();
+            if (!region.hasRemaining()) {
+                return -1;
+            }
+        }
+        int length = Math.min(dst.remaining(), region.remaining());
+        ByteBuffer source = region.duplicate();
+        source.limit(source.position() + length);
+        dst.put(source);
+        region.position(region.position() + length);
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        releaseRegion();
+        channel.close();
+    }
+}
@@ -0,0 +1,13 @@
+package aonuchin.nio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serializer of wide elements able to give a fixed length normalized prefix of the element key.
+ * Prefixes compared as unsigned longs must agree with the natural order of elements: a smaller prefix means
+ * a smaller element, elements with equal prefixes are compared by the comparator.
+ * Such elements are sorted as compact (prefix, index) pairs and moved only once.
+ */
+public interface NormalizedKeySerializer<E> extends ElementSerializer<E> {
+    long keyPrefix(ByteBuffer byteBuffer, int offset);
+}
@@ -0,0 +1,16 @@
+package aonuchin.nio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serializer whose elements have a binary key: comparing the key bytes as unsigned values one by one
+ * gives the natural order of elements. Such elements can be radix sorted.
+ */
+public interface OrderPreservingSerializer<E> extends ElementSerializer<E> {
+    int keySize();
+
+    /**
+     * Returns byte number {@code byteNo} of the key of the element serialized at {@code offset}, in range 0..255.
+     */
+    int keyByte(ByteBuffer byteBuffer, int offset, int byteNo);
+}
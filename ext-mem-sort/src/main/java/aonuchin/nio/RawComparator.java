@@ -0,0 +1,13 @@
+package aonuchin.nio;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ * Comparator which can also compare elements in their serialized form, so that sorting of
+ * a {@link ByteBuffersList} does not have to deserialize elements.
+ * Both comparisons must give the same order.
+ */
+public interface RawComparator<E> extends Comparator<E> {
+    int compare(ByteBuffer left, int leftOffset, ByteBuffer right, int rightOffset);
+}
@@ -0,0 +1,354 @@
+package aonuchin.nio;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Temporary storage of many buckets inside one file per temporary directory. Files are cut into extents
+ * of equal size, a bucket is the list of extents it has been given, and the manifest of extents lives in memory only.
+ * Extents of freed buckets are reused, so recursive passes do not grow files much. A bucket is given runs of
+ * adjacent extents, the lowest free ones unless those right after its last extent are free, so that buckets
+ * written side by side are still read mostly sequentially.
+ * Buckets are written and read by positional i/o of shared channels, so nothing is opened per bucket.
+ * With several files on different devices buckets are spread over them, so reading of one bucket
+ * overlaps writing of another.
+ */
+public class SpillStore implements Closeable {
+    /**
+     * How a file is chosen for a new bucket.
+     */
+    public enum Placement {
+        ROUND_ROBIN, FREE_SPACE
+    }
+
+    private static class Stripe {
+        private final int index;
+        private final Path path;
+        private final FileChannel channel;
+        private final FileStore fileStore;
+        private final TreeSet<Long> freeExtents = new TreeSet<>();
+        private long fileEnd = 0;
+        // buckets created and not freed yet, most of them are still empty when the next one is placed
+        private int liveBuckets = 0;
+
+        private Stripe(int index, Path path) throws IOException {
+            this.index = index;
+            this.path = path;
+            this.channel = FileChannel.open(path, READ, WRITE, CREATE, TRUNCATE_EXISTING);
+            this.fileStore = Files.getFileStore(path);
+        }
+    }
+
+    static final int EXTENT_RUN = 8;
+
+    private final List<Stripe> stripes = new ArrayList<>();
+    private final int extentSize;
+    private final Placement placement;
+    private int bucketsCreated = 0;
+
+    public SpillStore(Path path, int extentSize, long sizeHint) throws IOException {
+        this(Collections.singletonList(path), extentSize, sizeHint, Placement.ROUND_ROBIN);
+    }
+
+    /**
+     * @param paths       one file per device
+     * @param sizeHint expected number of bytes to store, files are extended to their share of it upfront. The files
+     *                 are sparse, no disk space is reserved, only appends past the file size are saved
+     */
+    public SpillStore(List<Path> paths, int extentSize, long sizeHint, Placement placement) throws IOException {
+        Preconditions.checkArgument(extentSize > 0, "Extent size " + extentSize);
+        Preconditions.checkArgument(!paths.isEmpty(), "No spill files");
+        Set<Path> distinct = new HashSet<>();
+        for (Path path : paths) {
+            Preconditions.checkArgument(distinct.add(path.toAbsolutePath().normalize()), "Duplicate spill file " + path);
+        }
+        this.extentSize = extentSize;
+        this.placement = placement;
+        try {
+            for (Path path : paths) {
+                Stripe stripe = new Stripe(stripes.size(), path);
+                stripes.add(stripe);
+                long share = sizeHint / paths.size();
+                if (share > 0) {
+                    stripe.channel.write(ByteBuffer.allocate(1), share - 1);
+                }
+            }
+        } catch (IOException e) {
+            try {
+                close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    public Bucket newBucket() throws IOException {
+        return new Bucket(chooseStripe());
+    }
+
+    /**
+     * Buckets of a pass are all created before any of them is written, so free space alone would put them
+     * on one device. Instead buckets are spread in proportion to free space of devices.
+     */
+    private synchronized Stripe chooseStripe() throws IOException {
+        Stripe best = stripes.get(bucketsCreated++ % stripes.size());
+        if (placement == Placement.FREE_SPACE) {
+            double bestShare = freeSpacePerBucket(best);
+            for (Stripe stripe : stripes) {
+                double share = freeSpacePerBucket(stripe);
+                if (share > bestShare) {
+                    best = stripe;
+                    bestShare = share;
+                }
+            }
+        }
+        best.liveBuckets++;
+        return best;
+    }
+
+    private static double freeSpacePerBucket(Stripe stripe) throws IOException {
+        return (double) stripe.fileStore.getUsableSpace() / (stripe.liveBuckets + 1);
+    }
+
+    /**
+     * Reserves the next run of at most {@link #EXTENT_RUN} adjacent extents for the bucket.
+     */
+    private synchronized void reserveExtents(Bucket bucket) {
+        Stripe stripe = bucket.stripe;
+        long start;
+        if (!bucket.extents.isEmpty() && stripe.freeExtents.contains(bucket.lastExtent() + extentSize)) {
+            start = bucket.lastExtent() + extentSize;
+        } else if (!stripe.freeExtents.isEmpty()) {
+            start = stripe.freeExtents.first();
+        } else {
+            bucket.nextReserved = stripe.fileEnd;
+            bucket.reservedExtents = EXTENT_RUN;
+            stripe.fileEnd += (long) EXTENT_RUN * extentSize;
+            return;
+        }
+        int count = 0;
+        while (count < EXTENT_RUN && stripe.freeExtents.remove(start + (long) count * extentSize)) {
+            count++;
+        }
+        bucket.nextReserved = start;
+        bucket.reservedExtents = count;
+    }
+
+    /**
+     * Returns extents reserved by the bucket and not written to the store.
+     */
+    private synchronized void releaseExtents(Bucket bucket) {
+        for (int i = 0; i < bucket.reservedExtents; i++) {
+            bucket.stripe.freeExtents.add(bucket.nextReserved + (long) i * extentSize);
+        }
+        bucket.reservedExtents = 0;
+    }
+
+    private synchronized void freeBucket(Bucket bucket) {
+        releaseExtents(bucket);
+        bucket.stripe.freeExtents.addAll(bucket.extents);
+        bucket.stripe.liveBuckets--;
+    }
+
+    /**
+     * Closes and deletes every file, failures after the first one are suppressed by it.
+     */
+    @Override
+    public void close() throws IOException {
+        Closer closer = Closer.create();
+        for (final Stripe stripe : stripes) {
+            closer.register(new Closeable() {
+                @Override
+                public void close() throws IOException {
+                    Files.deleteIfExists(stripe.path);
+                }
+            });
+            // closed before the file is deleted
+            closer.register(stripe.channel);
+        }
+        closer.close();
+    }
+
+    /**
+     * Bucket is written once through {@link #writer()}, then read any number of times through {@link #reader()}.
+     */
+    public class Bucket {
+        private final Stripe stripe;
+        private final FileChannel channel;
+        private final List<Long> extents = new ArrayList<>();
+        private long nextReserved;
+        private int reservedExtents = 0;
+        private long size = 0;
+        private boolean freed = false;
+
+        private Bucket(Stripe stripe) {
+            this.stripe = stripe;
+            this.channel = stripe.channel;
+        }
+
+        /**
+         * Channel appending to the bucket, closing it does not close the store.
+         */
+        public WritableByteChannel writer() {
+            return new WritableByteChannel() {
+                private boolean open = true;
+
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    int written = 0;
+                    while (src.hasRemaining()) {
+                        int used = (int) (size % extentSize);
+                        if (used == 0 && size == (long) extents.size() * extentSize) {
+                            extents.add(nextExtent());
+                        }
+                        int limit = src.limit();
+                        src.limit(src.position() + Math.min(src.remaining(), extentSize - used));
+                        long position = extents.get(extents.size() - 1) + used;
+                        while (src.hasRemaining()) {
+                            int n = channel.write(src, position);
+                            position += n;
+                            size += n;
+                            written += n;
+                        }
+                        src.limit(limit);
+                    }
+                    return written;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return open;
+                }
+
+                @Override
+                public void close() {
+                    open = false;
+                    releaseExtents(Bucket.this);
+                }
+            };
+        }
+
+        private long nextExtent() {
+            if (reservedExtents == 0) {
+                reserveExtents(this);
+            }
+            long extent = nextReserved;
+            nextReserved += extentSize;
+            reservedExtents--;
+            return extent;
+        }
+
+        private long lastExtent() {
+            return extents.get(extents.size() - 1);
+        }
+
+        /**
+         * Channel reading the bucket from the start, it can be positioned anywhere inside the bucket.
+         */
+        public SeekableByteChannel reader() {
+            return new SeekableByteChannel() {
+                private boolean open = true;
+                private long read = 0;
+
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    if (read == size) {
+                        return -1;
+                    }
+                    int used = (int) (read % extentSize);
+                    int limit = dst.limit();
+                    dst.limit(dst.position() + (int) Math.min(dst.remaining(), Math.min(extentSize - used, size - read)));
+                    int n = channel.read(dst, extents.get((int) (read / extentSize)) + used);
+                    dst.limit(limit);
+                    Preconditions.checkState(n >= 0, "Spill file is truncated");
+                    read += n;
+                    return n;
+                }
+
+                @Override
+                public long position() {
+                    return read;
+                }
+
+                @Override
+                public SeekableByteChannel position(long newPosition) {
+                    Preconditions.checkArgument(newPosition >= 0 && newPosition <= size, "Position " + newPosition);
+                    read = newPosition;
+                    return this;
+                }
+
+                @Override
+                public long size() {
+                    return size;
+                }
+
+                @Override
+                public int write(ByteBuffer src) {
+                    throw new NonWritableChannelException();
+                }
+
+                @Override
+                public SeekableByteChannel truncate(long size) {
+                    throw new NonWritableChannelException();
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return open;
+                }
+
+                @Override
+                public void close() {
+                    open = false;
+                }
+            };
+        }
+
+        public long size() {
+            return size;
+        }
+
+        /**
+         * Index of the spill file holding the bucket, in order of paths of the store.
+         */
+        public int stripe() {
+            return stripe.index;
+        }
+
+        /**
+         * Returns extents of the bucket to the store, the bucket must not be used afterwards.
+         */
+        public void free() {
+            if (freed) {
+                return;
+            }
+            freed = true;
+            freeBucket(this);
+            extents.clear();
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package aonuchin.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class StringSerializer implements VarLengthSerializer<String> {
+    @Override
+    public int sizeOf(String element) {
+        return element.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @Override
+    public void writeElement(ByteBuffer byteBuffer, int offset, String element) {
+        byte[] bytes = element.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i++) {
+            byteBuffer.put(offset + i, bytes[i]);
+        }
+    }
+
+    @Override
+    public String readElement(ByteBuffer byteBuffer, int offset, int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = byteBuffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
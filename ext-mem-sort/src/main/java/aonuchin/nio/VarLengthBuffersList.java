@@ -0,0 +1,152 @@
+package aonuchin.nio;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import static aonuchin.nio.VarLengthSerializer.LENGTH_PREFIX_SIZE;
+
+/**
+ * List of variable length elements: records are packed one after another into the buffers of the pool
+ * and located through an offset index, a record never spans two buffers. The index grows from the end of the pool
+ * towards the records, the list is full when they meet, so that the whole list stays within the pool.
+ * Elements can not be replaced, sorting swaps index entries only, see {@link #swap}.
+ */
+public class VarLengthBuffersList<E> extends AbstractList<E> implements RandomAccess {
+    private static final int INDEX_ENTRY_SIZE = 8;
+
+    private final List<ByteBuffer> buffersPool;
+    private final VarLengthSerializer<E> serializer;
+    private int size;
+    private int dataBuffer;
+    private int dataOffset;
+
+    public VarLengthBuffersList(List<ByteBuffer> buffersPool, VarLengthSerializer<E> serializer) {
+        this.buffersPool = buffersPool;
+        this.serializer = serializer;
+        clear();
+    }
+
+    /**
+     * Appends the element if there is room for it.
+     *
+     * @return false if the list is full
+     */
+    public boolean offer(E element) {
+        long entry = indexEntry(size);
+        if (entry < 0) {
+            return false;
+        }
+        int entryBuffer = (int) (entry >>> 32);
+        int elementSize = serializer.sizeOf(element);
+        int recordSize = LENGTH_PREFIX_SIZE + elementSize;
+        int bufferNo = dataBuffer;
+        int offset = dataOffset;
+        // records of the buffer holding the new index entry end before it, later buffers are taken by the index
+        while (bufferNo <= entryBuffer &&
+                (bufferNo == entryBuffer ? (int) entry : buffersPool.get(bufferNo).capacity()) - offset < recordSize) {
+            bufferNo++;
+            offset = 0;
+        }
+        if (bufferNo > entryBuffer) {
+            return false;
+        }
+        ByteBuffer buffer = buffersPool.get(bufferNo);
+        buffer.putInt(offset, elementSize);
+        serializer.writeElement(buffer, offset + LENGTH_PREFIX_SIZE, element);
+        buffersPool.get(entryBuffer).putLong((int) entry, ((long) bufferNo << 32) | offset);
+        size++;
+        dataBuffer = bufferNo;
+        dataOffset = offset + recordSize;
+        return true;
+    }
+
+    @Override
+    public boolean add(E element) {
+        if (!offer(element)) {
+            throw new IllegalArgumentException("List is full, " + size + " elements");
+        }
+        return true;
+    }
+
+    @Override
+    public E get(int i) {
+        Preconditions.checkElementIndex(i, size);
+        ByteBuffer buffer = bufferOf(i);
+        int offset = offsetOf(i);
+        return serializer.readElement(buffer, offset + LENGTH_PREFIX_SIZE, buffer.getInt(offset));
+    }
+
+    public void swap(int i, int j) {
+        long entryI = indexEntry(i);
+        long entryJ = indexEntry(j);
+        ByteBuffer bufferI = buffersPool.get((int) (entryI >>> 32));
+        ByteBuffer bufferJ = buffersPool.get((int) (entryJ >>> 32));
+        long t = bufferI.getLong((int) entryI);
+        bufferI.putLong((int) entryI, bufferJ.getLong((int) entryJ));
+        bufferJ.putLong((int) entryJ, t);
+    }
+
+    /**
+     * Writes records in the list order without deserializing them.
+     */
+    public void writeTo(VarLengthChannelWriter<E> writer) throws IOException {
+        for (int i = 0; i < size; i++) {
+            ByteBuffer buffer = bufferOf(i);
+            int offset = offsetOf(i);
+            writer.writeRecord(buffer, offset, LENGTH_PREFIX_SIZE + buffer.getInt(offset));
+        }
+    }
+
+    private ByteBuffer bufferOf(int i) {
+        return buffersPool.get((int) (record(i) >>> 32));
+    }
+
+    private int offsetOf(int i) {
+        return (int) record(i);
+    }
+
+    /**
+     * Buffer number in high and offset in low 32 bits of the i-th record.
+     */
+    private long record(int i) {
+        long entry = indexEntry(i);
+        return buffersPool.get((int) (entry >>> 32)).getLong((int) entry);
+    }
+
+    /**
+     * Buffer number in high and offset in low 32 bits of the i-th index entry, entries are laid out backwards
+     * from the end of the last buffer and never span two buffers. Negative if the pool has no room for it.
+     */
+    private long indexEntry(int i) {
+        for (int bufferNo = buffersPool.size() - 1; bufferNo >= 0; bufferNo--) {
+            int capacity = buffersPool.get(bufferNo).capacity();
+            int entries = capacity / INDEX_ENTRY_SIZE;
+            if (i < entries) {
+                return ((long) bufferNo << 32) | (capacity - (i + 1) * INDEX_ENTRY_SIZE);
+            }
+            i -= entries;
+        }
+        return -1;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        dataBuffer = 0;
+        dataOffset = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public VarLengthSerializer<E> getSerializer() {
+        return serializer;
+    }
+}
@@ -0,0 +1,72 @@
+package aonuchin.nio;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+
+import static aonuchin.nio.VarLengthSerializer.LENGTH_PREFIX_SIZE;
+
+/**
+ * Reads length prefixed records. Blocks are read regardless of record boundaries: the tail of a record
+ * cut by the end of a block is moved to the start of the buffer before the next block is read,
+ * so the buffer must fit the longest record.
+ */
+public class VarLengthChannelIterable<E> implements Iterable<E>, Closeable {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final VarLengthSerializer<E> serializer;
+    private boolean endOfChannel = false;
+
+    public VarLengthChannelIterable(ReadableByteChannel channel, ByteBuffer buffer, VarLengthSerializer<E> serializer) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.serializer = serializer;
+        buffer.clear();
+        buffer.limit(0);
+    }
+
+    private boolean ensureAvailable(int bytes) throws IOException {
+        Preconditions.checkArgument(bytes <= buffer.capacity(),
+                "Record of " + bytes + " bytes does not fit i/o buffer " + buffer.capacity());
+        while (buffer.remaining() < bytes && !endOfChannel) {
+            buffer.compact();
+            endOfChannel = channel.read(buffer) < 0;
+            buffer.flip();
+        }
+        return buffer.remaining() >= bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new AbstractIterator<E>() {
+            @Override
+            protected E computeNext() {
+                try {
+                    if (!ensureAvailable(LENGTH_PREFIX_SIZE)) {
+                        Preconditions.checkState(!buffer.hasRemaining(), "Truncated record length");
+                        return endOfData();
+                    }
+                    int position = buffer.position();
+                    int elementSize = buffer.getInt(position);
+                    Preconditions.checkState(ensureAvailable(LENGTH_PREFIX_SIZE + elementSize), "Truncated record");
+                    position = buffer.position();
+                    E element = serializer.readElement(buffer, position + LENGTH_PREFIX_SIZE, elementSize);
+                    buffer.position(position + LENGTH_PREFIX_SIZE + elementSize);
+                    return element;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,69 @@
+package aonuchin.nio;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static aonuchin.nio.VarLengthSerializer.LENGTH_PREFIX_SIZE;
+
+/**
+ * Writes length prefixed records, a record which does not fit the rest of the buffer goes to the next block.
+ */
+public class VarLengthChannelWriter<E> implements Closeable {
+    private final VarLengthSerializer<E> serializer;
+    private final ByteBuffer buffer;
+    private final WritableByteChannel channel;
+
+    public VarLengthChannelWriter(VarLengthSerializer<E> serializer, ByteBuffer buffer, WritableByteChannel channel) {
+        this.serializer = serializer;
+        this.buffer = buffer;
+        this.channel = channel;
+        buffer.clear();
+    }
+
+    public void writeElement(E element) throws IOException {
+        int elementSize = serializer.sizeOf(element);
+        ensureRoom(LENGTH_PREFIX_SIZE + elementSize);
+        int position = buffer.position();
+        buffer.putInt(position, elementSize);
+        serializer.writeElement(buffer, position + LENGTH_PREFIX_SIZE, element);
+        buffer.position(position + LENGTH_PREFIX_SIZE + elementSize);
+    }
+
+    /**
+     * Copies already serialized record, length prefix included.
+     */
+    public void writeRecord(ByteBuffer source, int offset, int recordSize) throws IOException {
+        ensureRoom(recordSize);
+        int position = buffer.position();
+        for (int i = 0; i < recordSize; i++) {
+            buffer.put(position + i, source.get(offset + i));
+        }
+        buffer.position(position + recordSize);
+    }
+
+    private void ensureRoom(int recordSize) throws IOException {
+        Preconditions.checkArgument(recordSize <= buffer.capacity(),
+                "Record of " + recordSize + " bytes does not fit i/o buffer " + buffer.capacity());
+        if (buffer.remaining() < recordSize) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
@@ -0,0 +1,17 @@
+package aonuchin.nio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serializer of variable length elements. Elements are stored as records: an int length prefix
+ * followed by {@link #sizeOf} bytes of the element.
+ */
+public interface VarLengthSerializer<E> {
+    int LENGTH_PREFIX_SIZE = 4;
+
+    int sizeOf(E element);
+
+    void writeElement(ByteBuffer byteBuffer, int offset, E element);
+
+    E readElement(ByteBuffer byteBuffer, int offset, int size);
+}
@@ -0,0 +1,60 @@
+package aonuchin.sort;
+
+/**
+ * Size of one bucket of a distribution sort pass. Depth 0 is the partitioning of the input,
+ * a bucket too big for memory is partitioned again one level deeper.
+ */
+public class BucketStatistics {
+    private final int depth;
+    private final long size;
+    private final boolean heavyHitter;
+    private final boolean resident;
+    private final int stripe;
+
+    BucketStatistics(int depth, long size, boolean heavyHitter, boolean resident, int stripe) {
+        this.depth = depth;
+        this.size = size;
+        this.heavyHitter = heavyHitter;
+        this.resident = resident;
+        this.stripe = stripe;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Size in bytes, before compression.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Whether the bucket holds copies of one value and is emitted without sorting.
+     */
+    public boolean isHeavyHitter() {
+        return heavyHitter;
+    }
+
+    /**
+     * Whether the bucket has never been written to a temporary file.
+     */
+    public boolean isResident() {
+        return resident;
+    }
+
+    /**
+     * Index of the temporary directory whose spill file has held the bucket.
+     */
+    public int getStripe() {
+        return stripe;
+    }
+
+    @Override
+    public String toString() {
+        return "BucketStatistics{depth=" + depth + ", size=" + size + ", heavyHitter=" + heavyHitter +
+                ", resident=" + resident +
+                ", stripe=" + stripe + '}';
+    }
+}
@@ -0,0 +1,9 @@
+package aonuchin.sort;
+
+/**
+ * Combines two elements which are equal by the comparator of a sort into one, which has to be equal to them too.
+ * Applied in no particular order, so it is expected to be associative and commutative.
+ */
+public interface Combiner<E> {
+    E combine(E left, E right);
+}
@@ -0,0 +1,70 @@
+package aonuchin.sort;
+
+import aonuchin.nio.ByteBuffersList;
+import aonuchin.nio.ChannelWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Comparator;
+
+/**
+ * Writer of a distribution sort bucket which combines equal elements before they reach the channel.
+ * A full buffer is sorted and its equal neighbours are combined, it is written out only if that
+ * has not freed a quarter of it. The rest of the buffer is combined on close as well.
+ */
+abstract class CombiningChannelWriter<E> extends ChannelWriter<E> {
+    private final ByteBuffersList<E> list;
+    private final Comparator<E> comparator;
+    private final Combiner<E> combiner;
+
+    /**
+     * @param list any list of the elements kind, used to view the buffer as a list
+     */
+    CombiningChannelWriter(ByteBuffersList<E> list, ByteBuffer buffer, WritableByteChannel channel,
+                           Comparator<E> comparator, Combiner<E> combiner) throws IOException {
+        super(list.getSerializer(), buffer, channel);
+        this.list = list;
+        this.comparator = comparator;
+        this.combiner = combiner;
+    }
+
+    protected abstract void sort(ByteBuffersList<E> elements);
+
+    @Override
+    protected void flushBuffer() throws IOException {
+        combineBuffer();
+        if (buffer.remaining() * 4 < buffer.capacity()) {
+            buffer.limit(buffer.position());
+            super.flushBuffer();
+            buffer.limit(buffer.capacity());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        combineBuffer();
+        super.close();
+    }
+
+    private void combineBuffer() {
+        ByteBuffersList<E> elements = list.viewOf(buffer);
+        if (elements.isEmpty()) {
+            return;
+        }
+        sort(elements);
+        int combined = 0;
+        E accumulated = elements.get(0);
+        for (int i = 1; i < elements.size(); i++) {
+            E element = elements.get(i);
+            if (comparator.compare(accumulated, element) == 0) {
+                accumulated = combiner.combine(accumulated, element);
+            } else {
+                elements.set(combined++, accumulated);
+                accumulated = element;
+            }
+        }
+        elements.set(combined++, accumulated);
+        buffer.position(combined * list.getSerializer().elementSize());
+    }
+}
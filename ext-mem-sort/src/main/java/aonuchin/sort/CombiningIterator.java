@@ -0,0 +1,46 @@
+package aonuchin.sort;
+
+import com.google.common.collect.AbstractIterator;
+
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * Combines runs of equal neighbours of a sorted iterator into single elements.
+ */
+class CombiningIterator<E> extends AbstractIterator<E> {
+    private final Iterator<E> sorted;
+    private final Comparator<E> comparator;
+    private final Combiner<E> combiner;
+    private E next;
+    private boolean hasNext = false;
+
+    CombiningIterator(Iterator<E> sorted, Comparator<E> comparator, Combiner<E> combiner) {
+        this.sorted = sorted;
+        this.comparator = comparator;
+        this.combiner = combiner;
+    }
+
+    @Override
+    protected E computeNext() {
+        if (!hasNext) {
+            if (!sorted.hasNext()) {
+                return endOfData();
+            }
+            next = sorted.next();
+        }
+        E accumulated = next;
+        hasNext = false;
+        while (sorted.hasNext()) {
+            E element = sorted.next();
+            if (comparator.compare(accumulated, element) == 0) {
+                accumulated = combiner.combine(accumulated, element);
+            } else {
+                next = element;
+                hasNext = true;
+                break;
+            }
+        }
+        return accumulated;
+    }
+}
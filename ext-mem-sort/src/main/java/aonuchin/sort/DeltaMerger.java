@@ -0,0 +1,137 @@
+package aonuchin.sort;
+
+import aonuchin.Utils;
+import aonuchin.nio.ElementSerializer;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * Merges sorted delta into a sorted file of fixed size elements. Sorted elements are read by positional reads
+ * of a whole buffer, merged elements are written a whole buffer at a time. Once the delta is over, sorted elements
+ * left are copied as bytes.
+ */
+class DeltaMerger<E> {
+    private final ElementSerializer<E> serializer;
+    private final Comparator<E> comparator;
+    private final FileChannel sorted;
+    private final ByteBuffer readBuffer;
+    private final ByteBuffer writeBuffer;
+    private final int elementSize;
+    private long readPosition;
+
+    DeltaMerger(ElementSerializer<E> serializer, Comparator<E> comparator, FileChannel sorted,
+                ByteBuffer readBuffer, ByteBuffer writeBuffer) {
+        this.serializer = serializer;
+        this.comparator = comparator;
+        this.sorted = sorted;
+        this.readBuffer = readBuffer;
+        this.writeBuffer = writeBuffer;
+        this.elementSize = serializer.elementSize();
+        Preconditions.checkArgument(readBuffer.capacity() >= elementSize && writeBuffer.capacity() >= elementSize,
+                "Buffers are smaller than an element");
+    }
+
+    /**
+     * Byte position of the first sorted element which is not less than the given one, size of the file if none is.
+     */
+    long lowerBound(E element) throws IOException {
+        Preconditions.checkState(sorted.size() % elementSize == 0, "Sorted file is truncated");
+        ByteBuffer buffer = ByteBuffer.allocate(elementSize);
+        long from = 0;
+        long to = sorted.size() / elementSize;
+        while (from < to) {
+            long middle = (from + to) >>> 1;
+            buffer.clear();
+            read(buffer, middle * elementSize);
+            buffer.flip();
+            if (comparator.compare(Utils.readElement(serializer, buffer), element) < 0) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from * elementSize;
+    }
+
+    /**
+     * Writes sorted elements from the given byte position merged with the delta, equal elements of the file first.
+     */
+    void merge(long from, Iterator<E> delta, WritableByteChannel tail) throws IOException {
+        readPosition = from;
+        readBuffer.limit(0);
+        writeBuffer.clear();
+        writeBuffer.limit(writeBuffer.capacity() - writeBuffer.capacity() % elementSize);
+        E head = nextSorted();
+        while (delta.hasNext()) {
+            E element = delta.next();
+            while (head != null && comparator.compare(head, element) <= 0) {
+                write(head, tail);
+                head = nextSorted();
+            }
+            write(element, tail);
+        }
+        if (head != null) {
+            write(head, tail);
+        }
+        writeBuffer.flip();
+        flush(writeBuffer, tail);
+        flush(readBuffer, tail);
+        transfer(sorted, readPosition, sorted.size() - readPosition, tail);
+    }
+
+    private E nextSorted() throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            readBuffer.clear();
+            readBuffer.limit((int) Math.min(readBuffer.capacity() - readBuffer.capacity() % elementSize,
+                    sorted.size() - readPosition));
+            read(readBuffer, readPosition);
+            readPosition += readBuffer.position();
+            readBuffer.flip();
+            if (!readBuffer.hasRemaining()) {
+                return null;
+            }
+        }
+        return Utils.readElement(serializer, readBuffer);
+    }
+
+    private void write(E element, WritableByteChannel tail) throws IOException {
+        if (!writeBuffer.hasRemaining()) {
+            writeBuffer.flip();
+            flush(writeBuffer, tail);
+            writeBuffer.clear();
+            writeBuffer.limit(writeBuffer.capacity() - writeBuffer.capacity() % elementSize);
+        }
+        Utils.writeElement(serializer, writeBuffer, element);
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = sorted.read(buffer, position);
+            Preconditions.checkState(n >= 0, "Sorted file is truncated");
+            position += n;
+        }
+    }
+
+    /**
+     * Writes the buffer from its position to its limit.
+     */
+    private static void flush(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static void transfer(FileChannel from, long position, long count, WritableByteChannel to) throws IOException {
+        while (count > 0) {
+            long n = from.transferTo(position, count, to);
+            position += n;
+            count -= n;
+        }
+    }
+}
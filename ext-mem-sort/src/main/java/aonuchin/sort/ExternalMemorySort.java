@@ -1,224 +1,893 @@
 package aonuchin.sort;
 
 import aonuchin.Utils;
+import aonuchin.nio.AsyncChannelWriter;
+import aonuchin.nio.BlockCodec;
+import aonuchin.nio.BlockSamplingChannel;
 import aonuchin.nio.ByteBuffersList;
 import aonuchin.nio.ChannelIterable;
 import aonuchin.nio.ChannelIterable.Builder;
 import aonuchin.nio.ChannelWriter;
+import aonuchin.nio.CompressedReadChannel;
+import aonuchin.nio.CompressedWriteChannel;
+import aonuchin.nio.LongBuffersList;
+import aonuchin.nio.LongChannelWriter;
+import aonuchin.nio.NormalizedKeySerializer;
+import aonuchin.nio.OrderPreservingSerializer;
+import aonuchin.nio.SpillStore;
+import aonuchin.nio.RawComparator;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.io.Closer;
+import me.aonuchin.orderstat.MunroPaterson;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
-import java.nio.file.DirectoryStream;
-import java.nio.file.DirectoryStream.Filter;
-import java.nio.file.FileVisitResult;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-import java.util.TreeMap;
-import java.util.concurrent.ThreadLocalRandom;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
 
 public class ExternalMemorySort<E> {
+    public enum Strategy {
+        DISTRIBUTION, MERGE
+    }
+
+    /**
+     * How distribution sort chooses pivots: evenly spaced elements of a random sample, or approximate
+     * quantiles of {@link MunroPaterson} whose rank error is bounded, so that every bucket fits into memory,
+     * or evenly spaced elements of the first memory load. The first load is sorted and partitioned before the rest
+     * of the input, so the input is read once only and need not be a file of a known size.
+     * <p>
+     * The quantiles summary lives on the java heap, outside of the memory given to the sort: a level of 16384 elements
+     * per doubling of the input past that size, such as 24 levels or some 400 thousand elements for a terabyte of longs.
+     */
+    public enum Pivots {
+        SAMPLE, QUANTILES, FIRST_LOAD
+    }
+
+    // elements per level of quantiles summary, rank error is about levels * input size / QUANTILES_LEVEL_SIZE
+    private static final int QUANTILES_LEVEL_SIZE = 1 << 14;
+    // size of blocks read by the sampler of distribution sort
+    private static final int SAMPLE_BLOCK_SIZE = 1 << 16;
+
+    private static class Chunk {
+        private final SpillStore.Bucket bucket;
+        private boolean sameElements;
+        private long size;
+        private long outputOffset;
+        // set when the chunk is compressed, knows its size before compression
+        private CompressedWriteChannel compressedChannel;
+        private ChannelWriter<?> writer;
+        // elements of the chunk which has never left its writer buffer
+        private ByteBuffer resident;
+
+        private Chunk(SpillStore.Bucket bucket, boolean sameElements) {
+            this.bucket = bucket;
+            this.sameElements = sameElements;
+        }
+    }
+
     private static class DistributionSort<E> {
-        public static final Pattern SORTED_CHUNK_PATTERN = Pattern.compile("sorted-chunk-file-\\d+");
-        final Comparator<Path> pathComparator = new Comparator<Path>() {
-            @Override
-            public int compare(Path o1, Path o2) {
-                Matcher matcher1 = SORTED_CHUNK_PATTERN.matcher(o1.getFileName().toString());
-                Matcher matcher2 = SORTED_CHUNK_PATTERN.matcher(o2.getFileName().toString());
-                Preconditions.checkArgument(matcher1.find() && matcher2.find());
-                E pivot1 = pivots.get(o1.getFileName());
-                E pivot2 = pivots.get(o2.getFileName());
-                return comparator.compare(pivot1, pivot2);
-            }
-        };
         private final ChannelIterable.Builder<E> channelIterator;
         private final ByteBuffersList<E> list;
-        private final int bufferCount;
+        // grows when quantile pivots need a bigger fan-out
+        private int bufferCount;
+        // input is either a file, a bucket of the spill store or a channel which can be read once
         private final Path inputPath;
+        private final SpillStore.Bucket inputBucket;
+        private final ReadableByteChannel inputChannel;
         private final Comparator<E> comparator;
-        private final Path tmpDir;
-        private final Map<Path, E> pivots;
+        private final SpillStore spillStore;
+        private final FileChannel output;
+        private final long outputOffset;
+        private int sortThreads = 1;
+        private int partitionThreads = 0;
+        private boolean radixSort = true;
+        private boolean compressSpills = false;
+        private boolean residentBuckets = false;
+        private Pivots pivots = Pivots.SAMPLE;
+        // size of the input before compression, -1 if input is not compressed
+        private long compressedInputSize = -1;
+        private List<BucketStatistics> statistics = null;
+        private int depth = 0;
+        // set by partitioning when an element is less than every sampled one
+        private boolean belowFirstPivot = false;
+        // output past this position is not needed and is not sorted
+        private long outputLimit = Long.MAX_VALUE;
+        private Combiner<E> combiner = null;
+
+        public DistributionSort(Comparator<E> comparator, Builder<E> channelIterator, ByteBuffersList<E> bigBuffer, int bufferCount, Path inputPath, SpillStore spillStore, FileChannel output, long outputOffset) {
+            this(comparator, channelIterator, bigBuffer, bufferCount, inputPath, null, null, spillStore, output, outputOffset);
+        }
+
+        public DistributionSort(Comparator<E> comparator, Builder<E> channelIterator, ByteBuffersList<E> bigBuffer, int bufferCount, SpillStore.Bucket inputBucket, SpillStore spillStore, FileChannel output, long outputOffset) {
+            this(comparator, channelIterator, bigBuffer, bufferCount, null, inputBucket, null, spillStore, output, outputOffset);
+        }
+
+        /**
+         * Input of unknown size which is read once, pivots are taken from its first memory load.
+         */
+        public DistributionSort(Comparator<E> comparator, Builder<E> channelIterator, ByteBuffersList<E> bigBuffer, int bufferCount, ReadableByteChannel inputChannel, SpillStore spillStore, FileChannel output, long outputOffset) {
+            this(comparator, channelIterator, bigBuffer, bufferCount, null, null, inputChannel, spillStore, output, outputOffset);
+            this.pivots = Pivots.FIRST_LOAD;
+        }
 
-        public DistributionSort(Comparator<E> comparator, Builder<E> channelIterator, ByteBuffersList<E> bigBuffer, int bufferCount, Path inputPath, Path tmpDir, Map<Path, E> pivots) throws IOException {
+        private DistributionSort(Comparator<E> comparator, Builder<E> channelIterator, ByteBuffersList<E> bigBuffer, int bufferCount, Path inputPath, SpillStore.Bucket inputBucket, ReadableByteChannel inputChannel, SpillStore spillStore, FileChannel output, long outputOffset) {
             this.channelIterator = channelIterator;
             this.comparator = comparator;
             this.list = bigBuffer;
             this.bufferCount = bufferCount;
             this.inputPath = inputPath;
-            this.tmpDir = tmpDir;
+            this.inputBucket = inputBucket;
+            this.inputChannel = inputChannel;
+            this.spillStore = spillStore;
+            this.output = output;
+            this.outputOffset = outputOffset;
+        }
+
+        public DistributionSort<E> withPartitionThreads(int partitionThreads) {
+            Preconditions.checkArgument(partitionThreads >= 0);
+            this.partitionThreads = partitionThreads;
+            return this;
+        }
+
+        public DistributionSort<E> withRadixSort(boolean radixSort) {
+            this.radixSort = radixSort;
+            return this;
+        }
+
+        public DistributionSort<E> withResidentBuckets(boolean residentBuckets) {
+            this.residentBuckets = residentBuckets;
+            return this;
+        }
+
+        public DistributionSort<E> withPivots(Pivots pivots) {
+            Preconditions.checkArgument(inputChannel == null || pivots == Pivots.FIRST_LOAD,
+                    "Channel input is read once, pivots come from its first load");
             this.pivots = pivots;
+            return this;
         }
 
-        public DistributionSort(Comparator<E> comparator, Builder<E> channelIterator, ByteBuffersList<E> bigBuffer, int bufferCount, Path inputPath, Path tmpDir) throws IOException {
-            this(comparator, channelIterator, bigBuffer, bufferCount, inputPath, tmpDir, new HashMap<Path, E>());
+        public DistributionSort<E> withCompressedSpills(boolean compressSpills) {
+            this.compressSpills = compressSpills;
+            return this;
         }
 
+        /**
+         * Input was written through {@link CompressedWriteChannel} and has the given size once decoded.
+         */
+        public DistributionSort<E> withCompressedInput(long rawSize) {
+            this.compressedInputSize = rawSize;
+            return this;
+        }
 
-        private List<Path> findSortedChunks(Path dir) throws IOException {
-            final List<Path> sortedChunks = new ArrayList<>();
-            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    if (SORTED_CHUNK_PATTERN.matcher(file.getFileName().toString()).matches()) {
-                        sortedChunks.add(file);
+        /**
+         * Collects sizes of buckets of this pass and of the recursive ones into the given synchronized list.
+         */
+        public DistributionSort<E> withStatistics(List<BucketStatistics> statistics, int depth) {
+            this.statistics = statistics;
+            this.depth = depth;
+            return this;
+        }
+
+        /**
+         * Only the output before the given position is needed: buckets past it are dropped unsorted.
+         * Output past the limit may still be written, up to a memory load or a bucket of equal elements.
+         */
+        public DistributionSort<E> withOutputLimit(long outputLimit) {
+            this.outputLimit = outputLimit;
+            return this;
+        }
+
+        /**
+         * Equal elements are combined by bucket writers before they are spilled. Partitioning happens
+         * in the calling thread then, writers are not asynchronous.
+         */
+        public DistributionSort<E> withCombiner(Combiner<E> combiner) {
+            this.combiner = combiner;
+            return this;
+        }
+
+        public DistributionSort<E> withSortThreads(int sortThreads) {
+            Preconditions.checkArgument(sortThreads > 0);
+            this.sortThreads = sortThreads;
+            return this;
+        }
+
+        public void splitChunksAndSort() throws IOException {
+            long inputSize = inputSize();
+            if (inputSize >= 0 && inputSize < list.capacityInBytes()) {
+                try (ReadableByteChannel channel = openInput()) {
+                    list.readFromChannel(channel);
+                }
+                sortInMemory(list);
+                list.writeToChannel(output, outputOffset);
+                return;
+            }
+            List<Chunk> chunks = partition(inputSize);
+            long offset = outputOffset;
+            List<Chunk> spilledChunks = new ArrayList<>(chunks.size());
+            List<Chunk> residentChunks = new ArrayList<>(chunks.size());
+            for (Chunk chunk : chunks) {
+                chunk.outputOffset = offset;
+                offset += chunk.size;
+                if (chunk.outputOffset >= outputLimit) {
+                    chunk.bucket.free();
+                } else if (chunk.resident != null) {
+                    residentChunks.add(chunk);
+                } else {
+                    spilledChunks.add(chunk);
+                }
+            }
+            Preconditions.checkArgument(inputSize < 0 || offset - outputOffset == inputSize);
+            // resident chunks live in memory which spilled chunks are about to reuse
+            for (Chunk chunk : residentChunks) {
+                sortResidentChunk(chunk);
+            }
+            if (sortThreads > 1) {
+                sortChunksConcurrently(spilledChunks);
+            } else {
+                for (Chunk chunk : spilledChunks) {
+                    sortChunk(chunk, channelIterator, list);
+                }
+            }
+        }
+
+        /**
+         * Element of the given rank in sorted order. The input is partitioned as for sorting, then only
+         * the bucket holding the rank is searched further, the other buckets are dropped.
+         */
+        public E select(long rank) throws IOException {
+            Preconditions.checkState(inputChannel == null, "Channel input is sorted into a file only");
+            long inputSize = inputSize();
+            if (inputSize < list.capacityInBytes()) {
+                try (ReadableByteChannel channel = openInput()) {
+                    list.readFromChannel(channel);
+                }
+                sortInMemory(list);
+                return list.get((int) rank);
+            }
+            int elementSize = list.getSerializer().elementSize();
+            List<Chunk> chunks = partition(inputSize);
+            Chunk selected = null;
+            long before = 0;
+            for (Chunk chunk : chunks) {
+                if (selected == null && rank < before + chunk.size / elementSize) {
+                    selected = chunk;
+                } else {
+                    chunk.bucket.free();
+                }
+                if (selected == null) {
+                    before += chunk.size / elementSize;
+                }
+            }
+            Preconditions.checkArgument(selected != null, "Rank " + rank + " of " + inputSize / elementSize + " elements");
+            rank -= before;
+            try {
+                if (selected.resident != null) {
+                    ByteBuffersList<E> elements = list.viewOf(selected.resident);
+                    if (!selected.sameElements) {
+                        sortInMemory(elements);
+                    }
+                    return elements.get((int) rank);
+                } else if (selected.sameElements) {
+                    try (ChannelIterable<E> elements = channelIterator.iterateOverChannel(openChunk(selected))) {
+                        return elements.iterator().next();
                     }
-                    return FileVisitResult.CONTINUE;
                 }
-            });
-            Collections.sort(sortedChunks, pathComparator);
-            return sortedChunks;
-        }
-
-        public void directoryToSortedBinaryFile(Path dir, Path outputFile, ByteBuffer bb) throws IOException {
-            final List<Path> sortedChunks = findSortedChunks(dir);
-            clueFiles(sortedChunks, outputFile, bb);
-        }
-
-        private void clueFiles(List<Path> sortedChunks, Path outputFile, ByteBuffer bb) throws IOException {
-            try (ByteChannel output = Files.newByteChannel(outputFile, WRITE, CREATE)) {
-                for (Path path : sortedChunks) {
-                    try (ByteChannel input = Files.newByteChannel(path)) {
-                        bb.limit(bb.capacity());
-                        bb.rewind();
-                        int totalReadBytes = 0;
-                        int readBytes;
-                        while ((readBytes = input.read(bb)) >= 0) {
-                            totalReadBytes += readBytes;
-                            if (readBytes == 0) {
-                                bb.rewind();
-                                bb.limit(totalReadBytes);
-                                while (bb.hasRemaining()) {
-                                    output.write(bb);
-                                }
-                                bb.limit(bb.capacity());
-                                bb.rewind();
-                                totalReadBytes = 0;
-                            }
-                        }
-                        bb.rewind();
-                        bb.limit(totalReadBytes);
-                        while (bb.hasRemaining()) {
-                            output.write(bb);
+                return childSort(selected, channelIterator, list).select(rank);
+            } finally {
+                selected.bucket.free();
+            }
+        }
+
+        /**
+         * Sorted elements of the input, produced bucket by bucket: a bucket is sorted in memory when iteration
+         * reaches it, a bucket too big for memory is partitioned again at that moment. Memory is reused
+         * by every bucket, so buckets are expected to be spilled rather than resident. Closing the iterator
+         * closes the bucket being read.
+         */
+        public SortedIterator iterateSorted() throws IOException {
+            Preconditions.checkState(inputChannel == null, "Channel input is sorted into a file only");
+            long inputSize = inputSize();
+            SortedIterator sorted = new SortedIterator();
+            if (inputSize < list.capacityInBytes()) {
+                try (ReadableByteChannel channel = openInput()) {
+                    list.readFromChannel(channel);
+                }
+                sortInMemory(list);
+                sorted.current = list.iterator();
+                return sorted;
+            }
+            for (Chunk chunk : partition(inputSize)) {
+                sorted.pending.addLast(new PendingChunk(this, chunk));
+            }
+            return sorted;
+        }
+
+        private class PendingChunk {
+            // level which has produced the chunk, partitions it further
+            private final DistributionSort<E> level;
+            private final Chunk chunk;
+
+            private PendingChunk(DistributionSort<E> level, Chunk chunk) {
+                this.level = level;
+                this.chunk = chunk;
+            }
+        }
+
+        private class SortedIterator extends AbstractIterator<E> implements Closeable {
+            private final Deque<PendingChunk> pending = new ArrayDeque<>();
+            private Iterator<E> current = Collections.emptyIterator();
+            private ChannelIterable<E> currentChannel = null;
+            private Chunk currentChunk = null;
+
+            @Override
+            protected E computeNext() {
+                try {
+                    while (!current.hasNext()) {
+                        finishChunk();
+                        PendingChunk next = pending.pollFirst();
+                        if (next == null) {
+                            return endOfData();
                         }
+                        startChunk(next);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return current.next();
+            }
+
+            @Override
+            public void close() throws IOException {
+                current = Collections.emptyIterator();
+                pending.clear();
+                finishChunk();
+            }
+
+            private void startChunk(PendingChunk next) throws IOException {
+                Chunk chunk = next.chunk;
+                currentChunk = chunk;
+                // iterator of the previous chunk does not survive reuse of the list
+                current = Collections.emptyIterator();
+                if (chunk.sameElements) {
+                    currentChannel = channelIterator.iterateOverChannel(openChunk(chunk));
+                    current = currentChannel.iterator();
+                } else if (chunk.size < list.capacityInBytes()) {
+                    try (ReadableByteChannel channel = openChunk(chunk)) {
+                        list.readFromChannel(channel);
+                    }
+                    sortInMemory(list);
+                    current = list.iterator();
+                } else {
+                    DistributionSort<E> child = next.level.childSort(chunk, channelIterator, list);
+                    List<Chunk> chunks = child.partition(child.inputSize());
+                    for (int i = chunks.size() - 1; i >= 0; i--) {
+                        pending.addFirst(new PendingChunk(child, chunks.get(i)));
                     }
                 }
             }
+
+            private void finishChunk() throws IOException {
+                if (currentChannel != null) {
+                    currentChannel.close();
+                    currentChannel = null;
+                }
+                if (currentChunk != null) {
+                    currentChunk.bucket.free();
+                    currentChunk = null;
+                }
+            }
         }
 
-        public void splitChunksAndSort() throws IOException {
-            Preconditions.checkArgument(Files.exists(inputPath) &&
-                    Files.exists(tmpDir) &&
-                    Files.isDirectory(tmpDir),
-                    inputPath.toString() + " " + tmpDir.toString());
-            if (Files.size(inputPath) < list.capacityInBytes()) {
-                try (ByteChannel channel = Files.newByteChannel(inputPath)) {
-                    list.readFromChannel(channel);
+        /**
+         * Size of the input, -1 if it is a channel.
+         */
+        private long inputSize() throws IOException {
+            if (inputChannel != null) {
+                return -1;
+            }
+            Preconditions.checkArgument(inputBucket != null || Files.exists(inputPath), inputPath);
+            return compressedInputSize >= 0 ? compressedInputSize :
+                    inputBucket != null ? inputBucket.size() : Files.size(inputPath);
+        }
+
+        /**
+         * Distributes the input over buckets of chosen pivots. Chunks come in pivots order and know their sizes.
+         * No chunks are returned if the first load of {@link Pivots#FIRST_LOAD} holds the whole input,
+         * it is written to the output sorted then.
+         */
+        private List<Chunk> partition(long inputSize) throws IOException {
+            if (pivots == Pivots.FIRST_LOAD) {
+                // writers take half of memory at most, the rest holds the first load
+                bufferCount = (int) Math.max(2, Math.min(bufferCount, list.capacityInBytes() / 2 / channelIterator.bufferSize()));
+                ByteBuffersList<E> firstLoad = list.newList(Utils.sliceListBuffersPoolTail(list.getBuffersPool(),
+                        Utils.sliceListBuffersPoolEnd(list.getBuffersPool(), writerBufferSize(), bufferCount)));
+                try (ReadableByteChannel channel = openInput()) {
+                    boolean wholeInput = firstLoad.fillFromChannel(channel);
+                    sortInMemory(firstLoad);
+                    if (wholeInput) {
+                        firstLoad.writeToChannel(output, outputOffset);
+                        return new ArrayList<>();
+                    }
+                    return partition(choosePivots(firstLoad), firstLoad, channel);
                 }
-                InPlaceParallelSort.sort(list, comparator);
-                if (list.isEmpty()) {
-                    return;
+            }
+            List<E> pivotElements;
+            if (pivots == Pivots.QUANTILES) {
+                pivotElements = quantilePivots(inputSize / list.getSerializer().elementSize());
+            } else {
+                sample();
+                sortInMemory(list);
+                pivotElements = choosePivots(list);
+            }
+            return partition(pivotElements, null, null);
+        }
+
+        /**
+         * @param firstLoad sorted elements already read, written to buckets before the rest, or null
+         * @param rest      channel of the input past the first load, or null if the input is read from its start
+         */
+        @SuppressWarnings("unchecked")
+        private List<Chunk> partition(List<E> pivotElements, ByteBuffersList<E> firstLoad, ReadableByteChannel rest) throws IOException {
+            List<Chunk> chunks = new ArrayList<>(bufferCount);
+            ExecutorService flushExecutor = partitionThreads > 0 && combiner == null ?
+                    Executors.newFixedThreadPool(partitionThreads) : null;
+            try {
+                List<ChannelWriter<E>> writers = buildPivots(pivotElements, flushExecutor, chunks);
+                if (firstLoad != null) {
+                    writeSortedSlices(pivotElements, firstLoad, writers);
                 }
-                Path outputPath = Paths.get(tmpDir.toString(), "sorted-chunk-file-" + pivots.size());
-                pivots.put(outputPath.getFileName(), list.get(0));
-                try (ByteChannel channel = Files.newByteChannel(
-                        outputPath, WRITE, CREATE)) {
-                    list.writeToChannel(channel);
+                if (flushExecutor == null) {
+                    try (ChannelIterable<E> elementsInFile = rest != null ? channelIterator.iterateOverChannel(rest) : iterateInput()) {
+                        if (LongFastPath.applies(list, comparator) && combiner == null) {
+                            belowFirstPivot = LongFastPath.partition((ChannelIterable<Long>) elementsInFile,
+                                    (List<Long>) pivotElements, (List<ChannelWriter<Long>>) (List<?>) writers);
+                        } else {
+                            belowFirstPivot = new SplitterTree<>(pivotElements, comparator)
+                                    .partition(elementsInFile.iterator(), writers);
+                        }
+                    }
+                } else {
+                    PartitionPipeline<E> pipeline = new PartitionPipeline<>(list.getSerializer(),
+                            new SplitterTree<>(pivotElements, comparator), writers, partitionThreads);
+                    try (ReadableByteChannel channel = rest != null ? rest : openInput()) {
+                        belowFirstPivot = pipeline.partition(channel, channelIterator.getBuffer());
+                    }
+                }
+                if (belowFirstPivot) {
+                    chunks.get(0).sameElements = false;
+                }
+                for (Chunk chunk : chunks) {
+                    chunk.resident = residentBuckets ? chunk.writer.unflushedElements() : null;
+                    if (chunk.resident == null) {
+                        chunk.writer.close();
+                    }
+                }
+            } finally {
+                if (flushExecutor != null) {
+                    flushExecutor.shutdownNow();
                 }
-                return;
             }
-            E min = sampleAndFindMin();
-            InPlaceParallelSort.sort(list, comparator);
-
-            NavigableMap<E, List<ChannelWriter<E>>> writersPerPivot = buildPivots(min);
-            try (ChannelIterable<E> elementsInFile = channelIterator.iterateOverChannel(Files.newByteChannel(inputPath))) {
-                for (E element : elementsInFile) {
-                    Entry<E, List<ChannelWriter<E>>> entry = writersPerPivot.floorEntry(element);
-                    List<ChannelWriter<E>> writers = entry.getValue();
-                    E pivot = entry.getKey();
-                    Preconditions.checkArgument(!writers.isEmpty());
-                    if (writers.size() == 1) {
-                        writers.get(0).writeElement(element);
-                    } else if (comparator.compare(element, pivot) > 0) {
-                        writers.get(writers.size() - 1).writeElement(element);
-                    } else {
-                        writers.get(ThreadLocalRandom.current().nextInt(writers.size() - 1)).writeElement(element);
+            Preconditions.checkArgument(bufferCount == chunks.size());
+            for (Chunk chunk : chunks) {
+                if (chunk.resident != null) {
+                    chunk.size = chunk.resident.position();
+                } else {
+                    chunk.size = chunk.compressedChannel != null ? chunk.compressedChannel.rawBytesWritten() : chunk.bucket.size();
+                }
+                if (statistics != null) {
+                    statistics.add(new BucketStatistics(depth, chunk.size, chunk.sameElements, chunk.resident != null,
+                            chunk.bucket.stripe()));
+                }
+            }
+            return chunks;
+        }
+
+        private void sortResidentChunk(Chunk chunk) throws IOException {
+            ByteBuffersList<E> elements = list.viewOf(chunk.resident);
+            if (!chunk.sameElements) {
+                sortInMemory(elements);
+            }
+            elements.writeToChannel(output, chunk.outputOffset);
+            chunk.bucket.free();
+        }
+
+        /**
+         * Sorts chunk straight into its place of the output file. Chunks holding elements equal to a duplicated
+         * pivot are already sorted and are copied as they are.
+         */
+        private void sortChunk(Chunk chunk, Builder<E> channelIterator, ByteBuffersList<E> list) throws IOException {
+            if (chunk.sameElements) {
+                ByteBuffer buffer = channelIterator.getBuffer();
+                try (ReadableByteChannel input = openChunk(chunk)) {
+                    long position = chunk.outputOffset;
+                    buffer.clear();
+                    while ((input.read(buffer) >= 0 || buffer.position() > 0) && position < outputLimit) {
+                        buffer.flip();
+                        position += output.write(buffer, position);
+                        buffer.compact();
                     }
                 }
+            } else if (chunk.size > 0) {
+                childSort(chunk, channelIterator, list).splitChunksAndSort();
             }
-            for (Iterable<ChannelWriter<E>> writers : writersPerPivot.values()) {
-                for (ChannelWriter writer : writers) {
-                    writer.close();
+            chunk.bucket.free();
+        }
+
+        /**
+         * Sort of a spilled chunk one level deeper, with the same settings.
+         */
+        private DistributionSort<E> childSort(Chunk chunk, Builder<E> channelIterator, ByteBuffersList<E> list) {
+            int maxBufferCount = (int) Math.max(1, list.capacityInBytes() / channelIterator.bufferSize() - 1);
+            // the bucket outgrew memory although pivots promised it would not: it is sampled again
+            // with twice the fan-out it needs, so that sampling error does not cost another level
+            return new DistributionSort<E>(comparator, channelIterator, list,
+                    (int) Math.min(maxBufferCount, 2 * (chunk.size / list.capacityInBytes() + 1)),
+                    chunk.bucket,
+                    spillStore,
+                    output,
+                    chunk.outputOffset).withPartitionThreads(partitionThreads)
+                    .withRadixSort(radixSort)
+                    .withCompressedSpills(compressSpills)
+                    .withResidentBuckets(residentBuckets)
+                    // buckets have known sizes, a first load of a nearly sorted input would hold its least elements only
+                    .withPivots(pivots == Pivots.FIRST_LOAD ? Pivots.SAMPLE : pivots)
+                    .withCompressedInput(chunk.compressedChannel != null ? chunk.compressedChannel.rawBytesWritten() : -1)
+                    .withOutputLimit(outputLimit)
+                    .withCombiner(combiner)
+                    .withStatistics(statistics, depth + 1);
+        }
+
+        private ReadableByteChannel openChunk(Chunk chunk) {
+            ReadableByteChannel reader = chunk.bucket.reader();
+            return chunk.compressedChannel != null ? new CompressedReadChannel(reader) : reader;
+        }
+
+        /**
+         * Splits memory into a list and a read buffer per worker, so that reading and writing of one chunk
+         * overlaps with in-memory sorting of another. Biggest chunks are scheduled first.
+         */
+        private void sortChunksConcurrently(List<Chunk> chunks) throws IOException {
+            chunks = new ArrayList<>(chunks);
+            Collections.sort(chunks, new Comparator<Chunk>() {
+                @Override
+                public int compare(Chunk o1, Chunk o2) {
+                    return Long.compare(o2.size, o1.size);
                 }
+            });
+            final Queue<Chunk> queue = new ConcurrentLinkedQueue<>(chunks);
+            int workers = Math.min(sortThreads, chunks.size());
+            long workerBytes = Utils.capacityInBytes(list.getBuffersPool()) / workers;
+            int bufferSize = channelIterator.bufferSize();
+            Preconditions.checkArgument(workerBytes > 2 * bufferSize, "Not enough memory for " + workers + " workers");
+            ExecutorService executor = Executors.newFixedThreadPool(workers);
+            try {
+                List<Future<Void>> futures = new ArrayList<>(workers);
+                for (int i = 0; i < workers; i++) {
+                    List<ByteBuffer> workerPool = Utils.sliceListBuffersPoolRange(list.getBuffersPool(), i * workerBytes, workerBytes);
+                    final Builder<E> workerIterator = new Builder<>(
+                            Utils.sliceListBuffersPool(workerPool, bufferSize, 1).get(0), list.getSerializer(),
+                            channelIterator.getBackend());
+                    final ByteBuffersList<E> workerList = list.newList(Utils.sliceListBuffersPoolTail(workerPool,
+                            Utils.sliceListBuffersPoolEnd(workerPool, bufferSize, 1)));
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            Chunk chunk;
+                            while ((chunk = queue.poll()) != null) {
+                                sortChunk(chunk, workerIterator, workerList);
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                // the output is incomplete
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause(), IOException.class);
+                throw new RuntimeException(e.getCause());
+            } finally {
+                executor.shutdownNow();
             }
-            try (DirectoryStream<Path> files = Files.newDirectoryStream(tmpDir, new Filter<Path>() {
+        }
+
+        /**
+         * Pivots from the sorted sample held by the list. A value taking at least half a bucket of the sample
+         * is a heavy hitter: it gets a bucket of its own, which is emitted without sorting, followed by
+         * a bucket of elements greater than it. The rest of the pivots split the sample without heavy hitters evenly.
+         */
+        List<E> choosePivots(ByteBuffersList<E> list) {
+            E minPivot = list.get(0);
+            int sampleSize = list.size();
+            int threshold = Math.max(2, sampleSize / bufferCount / 2);
+            // every run of threshold equal elements covers an index of the form k * threshold - 1
+            List<int[]> heavyRuns = new ArrayList<>();
+            for (int i = threshold - 1; i < sampleSize; i += threshold) {
+                if (!heavyRuns.isEmpty() && heavyRuns.get(heavyRuns.size() - 1)[1] > i) {
+                    continue;
+                }
+                E value = list.get(i);
+                int from = searchRunBound(list, value, 0, i, true);
+                int to = searchRunBound(list, value, i + 1, sampleSize, false);
+                if (to - from >= threshold) {
+                    heavyRuns.add(new int[]{from, to});
+                }
+            }
+            Comparator<int[]> byFrom = new Comparator<int[]>() {
                 @Override
-                public boolean accept(Path entry) throws IOException {
-                    return entry.getFileName().toString().startsWith("chunk-file-") && Files.isReadable(entry);
+                public int compare(int[] o1, int[] o2) {
+                    return Integer.compare(o1[0], o2[0]);
                 }
-            })) {
-                int filesNum = 0;
-                for (Path chunkFile : files) {
-                    filesNum++;
-                    Path chunkTmpDir = Paths.get(tmpDir.toString(), "sorted-directory-" + chunkFile.getFileName());
-                    Files.createDirectories(chunkTmpDir);
-                    new DistributionSort<E>(comparator, channelIterator, list,
-                            (int) (Files.size(chunkFile) / list.capacityInBytes()) + 1,
-                            chunkFile.toAbsolutePath(),
-                            chunkTmpDir.toAbsolutePath(),
-                            pivots).splitChunksAndSort();
+            };
+            int maxHeavyHitters = (bufferCount - 1) / 2;
+            if (heavyRuns.size() > maxHeavyHitters) {
+                Collections.sort(heavyRuns, new Comparator<int[]>() {
+                    @Override
+                    public int compare(int[] o1, int[] o2) {
+                        return Integer.compare(o2[1] - o2[0], o1[1] - o1[0]);
+                    }
+                });
+                heavyRuns = new ArrayList<>(heavyRuns.subList(0, maxHeavyHitters));
+                Collections.sort(heavyRuns, byFrom);
+            }
 
+            int lightSize = sampleSize;
+            for (int[] run : heavyRuns) {
+                lightSize -= run[1] - run[0];
+            }
+            int lightBuckets = bufferCount - 2 * heavyRuns.size();
+            List<E> lightPivots = new ArrayList<>(lightBuckets);
+            lightPivots.add(minPivot);
+            for (int i = 1; i < lightBuckets; i++) {
+                if (lightSize == 0) {
+                    lightPivots.add(minPivot);
+                    continue;
                 }
-                Preconditions.checkArgument(bufferCount == filesNum);
+                int index = (int) ((long) i * lightSize / lightBuckets);
+                for (int[] run : heavyRuns) {
+                    if (run[0] <= index) {
+                        index += run[1] - run[0];
+                    }
+                }
+                lightPivots.add(list.get(index));
             }
-        }
 
-        private NavigableMap<E, List<ChannelWriter<E>>> buildPivots(E minPivot) throws IOException {
-            int step = list.size() / bufferCount;
             List<E> pivots = new ArrayList<>(bufferCount);
+            int light = 0;
+            for (int[] run : heavyRuns) {
+                E heavyHitter = list.get(run[0]);
+                while (light < lightPivots.size() && comparator.compare(lightPivots.get(light), heavyHitter) <= 0) {
+                    pivots.add(lightPivots.get(light++));
+                }
+                pivots.add(heavyHitter);
+                pivots.add(heavyHitter);
+            }
+            pivots.addAll(lightPivots.subList(light, lightPivots.size()));
+            return pivots;
+        }
+
+        /**
+         * First index in [from, to) of the sorted list whose element is not less than the value (lower)
+         * or greater than it (upper).
+         */
+        private int searchRunBound(ByteBuffersList<E> list, E value, int from, int to, boolean lower) {
+            while (from < to) {
+                int middle = (from + to) >>> 1;
+                int compared = comparator.compare(list.get(middle), value);
+                if (compared < 0 || (!lower && compared == 0)) {
+                    from = middle + 1;
+                } else {
+                    to = middle;
+                }
+            }
+            return from;
+        }
 
-            pivots.add(minPivot);
-            for (int i = 1; i < bufferCount; i++) {
-                pivots.add(list.get(i * step));
+        /**
+         * Pivots from approximate quantiles of one pass over the input. The fan-out grows until buckets are
+         * guaranteed to fit into memory despite the rank error of quantiles, as long as memory fits writer buffers.
+         */
+        List<E> quantilePivots(long elementsCount) throws IOException {
+            MunroPaterson<E> quantiles = MunroPaterson.create(comparator).withLevelSize(QUANTILES_LEVEL_SIZE);
+            long rankError = quantiles.rankError(elementsCount);
+            int maxBufferCount = (int) Math.max(bufferCount, list.capacityInBytes() / channelIterator.bufferSize() - 1);
+            while (bufferCount < maxBufferCount && elementsCount / bufferCount + 2 * rankError + 1 >= list.capacity()) {
+                bufferCount++;
+            }
+            try (ChannelIterable<E> elementsInFile = iterateInput()) {
+                return quantiles.findQuantiles(elementsInFile, bufferCount);
             }
+        }
+
+        /**
+         * Writers of buckets of the pivots, in pivots order.
+         */
+        @SuppressWarnings("unchecked")
+        private List<ChannelWriter<E>> buildPivots(List<E> pivots, ExecutorService flushExecutor, List<Chunk> chunks) throws IOException {
             Preconditions.checkArgument(pivots.size() == bufferCount);
 
-            NavigableMap<E, List<ChannelWriter<E>>> writeBuffers = new TreeMap<>();
-            List<ByteBuffer> buffers = Utils.sliceListBuffersPool(list.getBuffersPool(), channelIterator.bufferSize(), bufferCount);
+            List<ChannelWriter<E>> fileWriters = new ArrayList<>(bufferCount);
+            List<ByteBuffer> buffers = Utils.sliceListBuffersPool(list.getBuffersPool(), writerBufferSize(), bufferCount);
             int i = 0;
             for (E pivot : pivots) {
-                if (!writeBuffers.containsKey(pivot)) {
-                    writeBuffers.put(pivot, new ArrayList<ChannelWriter<E>>(16));
+                boolean duplicatedPivot = i + 1 < bufferCount && comparator.compare(pivot, pivots.get(i + 1)) == 0;
+                Chunk chunk = new Chunk(spillStore.newBucket(), duplicatedPivot);
+                chunks.add(chunk);
+                WritableByteChannel channel = chunk.bucket.writer();
+                if (compressSpills) {
+                    // chunk of equal elements is a sorted run, the rest are partitions in no particular order
+                    boolean sortedLongs = duplicatedPivot && list.getSerializer().elementSize() == 8;
+                    chunk.compressedChannel = new CompressedWriteChannel(channel,
+                            sortedLongs ? BlockCodec.DELTA_VARINT : BlockCodec.DEFLATE);
+                    channel = chunk.compressedChannel;
+                }
+                if (combiner != null) {
+                    fileWriters.add(new CombiningChannelWriter<E>(list, buffers.get(i), channel, comparator, combiner) {
+                        @Override
+                        protected void sort(ByteBuffersList<E> elements) {
+                            sortInMemory(elements);
+                        }
+                    });
+                } else if (flushExecutor != null) {
+                    fileWriters.add(new AsyncChannelWriter<>(list.getSerializer(), buffers.get(i), channel, flushExecutor));
+                } else if (LongFastPath.applies(list, comparator)) {
+                    fileWriters.add((ChannelWriter<E>) (ChannelWriter<?>) new LongChannelWriter(buffers.get(i), channel));
+                } else {
+                    fileWriters.add(new ChannelWriter<>(list.getSerializer(), buffers.get(i), channel));
                 }
-                List<ChannelWriter<E>> fileWriters = writeBuffers.get(pivot);
-                Path unsortedOutputPath = Paths.get(tmpDir.toString(), "chunk-file-" + i + "." + fileWriters.size());
-                fileWriters.add(new ChannelWriter<>(
-                        list.getSerializer(), buffers.get(i), Files.newByteChannel(unsortedOutputPath, WRITE, CREATE)));
+                chunk.writer = fileWriters.get(fileWriters.size() - 1);
 
                 i++;
             }
-            return writeBuffers;
+            return fileWriters;
         }
 
-        E sampleAndFindMin() throws IOException {
-            try (ChannelIterable<E> elementsInFile = channelIterator.iterateOverChannel(Files.newByteChannel(inputPath))) {
-               return Utils.sampleAndFindMin(elementsInFile, list, list.capacity(), comparator);
+        /**
+         * Writes a sorted list, whose least element is the first pivot, to buckets of the pivots slice by slice.
+         * Slice bounds are found by binary search. Elements equal to a duplicated pivot all go to the first
+         * of its buckets, those are buckets of equal elements and need no balancing.
+         */
+        private void writeSortedSlices(List<E> pivots, ByteBuffersList<E> sorted, List<ChannelWriter<E>> writers) throws IOException {
+            int from = 0;
+            int bucket = 0;
+            while (bucket < pivots.size()) {
+                int next = bucket + 1;
+                while (next < pivots.size() && comparator.compare(pivots.get(bucket), pivots.get(next)) == 0) {
+                    next++;
+                }
+                int to = next < pivots.size() ? searchRunBound(sorted, pivots.get(next), from, sorted.size(), true) : sorted.size();
+                if (next - bucket > 1) {
+                    int equalTo = searchRunBound(sorted, pivots.get(bucket), from, to, false);
+                    writeSlice(sorted, from, equalTo, writers.get(bucket));
+                    from = equalTo;
+                }
+                writeSlice(sorted, from, to, writers.get(next - 1));
+                from = to;
+                bucket = next;
+            }
+        }
+
+        private void writeSlice(ByteBuffersList<E> sorted, int from, int to, ChannelWriter<E> writer) throws IOException {
+            for (int i = from; i < to; i++) {
+                writer.writeElement(sorted.get(i));
+            }
+        }
+
+        /**
+         * With resident buckets all memory is shared by bucket writers, so that a bucket stays in memory
+         * as long as it fits its writer buffer. Otherwise writers get an i/o buffer each.
+         */
+        private int writerBufferSize() {
+            int bufferSize = channelIterator.bufferSize();
+            // memory past writers holds the first load
+            if (!residentBuckets || pivots == Pivots.FIRST_LOAD) {
+                return bufferSize;
+            }
+            List<ByteBuffer> pool = list.getBuffersPool();
+            int writersPerPoolBuffer = (bufferCount + pool.size() - 1) / pool.size();
+            int smallest = Integer.MAX_VALUE;
+            for (ByteBuffer buffer : pool) {
+                smallest = Math.min(smallest, buffer.capacity());
+            }
+            // slicing needs a spare byte after the last writer buffer
+            int enlarged = (smallest - 1) / writersPerPoolBuffer;
+            enlarged -= enlarged % list.getSerializer().elementSize();
+            return Math.max(bufferSize, enlarged);
+        }
+
+        private ReadableByteChannel openInput() throws IOException {
+            if (inputChannel != null) {
+                return inputChannel;
+            }
+            ReadableByteChannel channel = inputBucket != null ? inputBucket.reader() : channelIterator.getBackend().open(inputPath);
+            return compressedInputSize >= 0 ? new CompressedReadChannel(channel) : channel;
+        }
+
+        private ChannelIterable<E> iterateInput() throws IOException {
+            if (inputBucket != null || inputChannel != null) {
+                return channelIterator.iterateOverChannel(openInput());
+            }
+            return channelIterator.iterateOverFile(inputPath);
+        }
+
+        /**
+         * Fills the list with a sample of the input. Uncompressed input is sampled by random blocks read
+         * at their positions, so only about the list size of it is read. Compressed input can only be read
+         * through, it is reservoir sampled.
+         */
+        @SuppressWarnings("unchecked")
+        void sample() throws IOException {
+            if (compressedInputSize < 0) {
+                int elementSize = list.getSerializer().elementSize();
+                // an element less than the list holds, so that reading is ended by the end of the channel
+                long sampleBytes = (list.capacity() - 1L) * elementSize;
+                int blockSize = (int) Math.min(SAMPLE_BLOCK_SIZE, sampleBytes / 64);
+                blockSize = Math.max(elementSize, blockSize - blockSize % elementSize);
+                SeekableByteChannel source = inputBucket != null ? inputBucket.reader() : FileChannel.open(inputPath, READ);
+                try (ReadableByteChannel channel = new BlockSamplingChannel(source, sampleBytes, blockSize)) {
+                    list.readFromChannel(channel);
+                }
+                Preconditions.checkState(list.size() > 0, "Empty sample");
+                return;
+            }
+            try (ChannelIterable<E> elementsInFile = iterateInput()) {
+                if (LongFastPath.applies(list, comparator)) {
+                    LongFastPath.sampleAndFindMin((ChannelIterable<Long>) elementsInFile, (LongBuffersList) list);
+                } else {
+                    Utils.sampleAndFindMin(elementsInFile, list, list.capacity(), comparator);
+                }
+            }
+        }
+
+        private void sortInMemory(ByteBuffersList<E> list) {
+            if (list.getSerializer() instanceof NormalizedKeySerializer && Ordering.natural().equals(comparator)) {
+                InPlaceParallelSort.pointerSort(list, comparator);
+            } else if (radixSort && list.getSerializer() instanceof OrderPreservingSerializer
+                    && Ordering.natural().equals(comparator)) {
+                InPlaceParallelSort.radixSort(list);
+            } else if (LongFastPath.applies(list, comparator)) {
+                InPlaceParallelSort.sort((LongBuffersList) list);
+            } else if (comparator instanceof RawComparator) {
+                InPlaceParallelSort.rawSort(list, (RawComparator<E>) comparator);
+            } else {
+                InPlaceParallelSort.sort(list, comparator);
             }
         }
     }
@@ -226,18 +895,307 @@ public class ExternalMemorySort<E> {
     private ChannelIterable.Builder<E> channelIterator;
     private ByteBuffersList<E> list;
     private int bufferCount;
-    private Path tmpDir;
+    private List<Path> tmpDirs;
+    private SpillStore.Placement placement = SpillStore.Placement.ROUND_ROBIN;
+    private Strategy strategy = Strategy.DISTRIBUTION;
+    private int sortThreads = 1;
+    private int partitionThreads = 0;
+    private boolean radixSort = true;
+    private boolean compressSpills = false;
+    private boolean residentBuckets = false;
+    private Pivots pivots = Pivots.SAMPLE;
+    private Combiner<E> combiner = null;
+    private final List<BucketStatistics> bucketStatistics = Collections.synchronizedList(new ArrayList<BucketStatistics>());
 
     public ExternalMemorySort(Builder<E> channelIterator, ByteBuffersList<E> list, int bufferCount, Path tmpDir) {
+        this(channelIterator, list, bufferCount, Collections.singletonList(tmpDir));
+    }
+
+    /**
+     * Temporary files are striped over the directories, which are expected to be on different devices.
+     */
+    public ExternalMemorySort(Builder<E> channelIterator, ByteBuffersList<E> list, int bufferCount, List<Path> tmpDirs) {
+        Preconditions.checkArgument(!tmpDirs.isEmpty(), "No temporary directories");
         this.channelIterator = channelIterator;
         this.list = list;
         this.bufferCount = bufferCount;
-        this.tmpDir = tmpDir;
+        this.tmpDirs = tmpDirs;
+    }
+
+    /**
+     * How temporary directories are chosen for buckets of distribution sort, round robin by default.
+     */
+    public ExternalMemorySort<E> withPlacement(SpillStore.Placement placement) {
+        this.placement = placement;
+        return this;
+    }
+
+    public ExternalMemorySort<E> withStrategy(Strategy strategy) {
+        this.strategy = strategy;
+        return this;
+    }
+
+    /**
+     * Number of buckets sorted concurrently by distribution sort. Memory is split evenly between them.
+     */
+    public ExternalMemorySort<E> withSortThreads(int sortThreads) {
+        this.sortThreads = sortThreads;
+        return this;
+    }
+
+    /**
+     * Number of classifier and writer threads of the pipelined partitioning pass, 0 partitions in the calling thread.
+     */
+    public ExternalMemorySort<E> withPartitionThreads(int partitionThreads) {
+        this.partitionThreads = partitionThreads;
+        return this;
+    }
+
+    /**
+     * Whether memory loads are radix sorted when the serializer has an order preserving key
+     * and elements are sorted in natural order. Enabled by default.
+     */
+    public ExternalMemorySort<E> withRadixSort(boolean radixSort) {
+        this.radixSort = radixSort;
+        return this;
+    }
+
+    /**
+     * Whether temporary chunk files of distribution sort are compressed block by block:
+     * chunks of equal longs by delta varint encoding, other chunks by deflate. Output is never compressed.
+     * Blocks are encoded and decoded through heap arrays outside of the memory of the sort: an encoded i/o buffer
+     * per writing thread, a 4 KB deflate input array per chunk being written, and an encoded and a decoded
+     * i/o buffer per chunk being read.
+     */
+    public ExternalMemorySort<E> withCompressedSpills(boolean compressSpills) {
+        this.compressSpills = compressSpills;
+        return this;
+    }
+
+    /**
+     * Hybrid distribution sort: memory is split between bucket writers, buckets which fit their writer buffer
+     * are sorted and written to the output without a round trip to disk.
+     */
+    public ExternalMemorySort<E> withResidentBuckets(boolean residentBuckets) {
+        this.residentBuckets = residentBuckets;
+        return this;
+    }
+
+    /**
+     * How distribution sort chooses pivots, from a random sample by default.
+     */
+    public ExternalMemorySort<E> withPivots(Pivots pivots) {
+        this.pivots = pivots;
+        return this;
+    }
+
+    /**
+     * Elements equal by the comparator are combined into one: inside bucket writers before they are spilled
+     * and again when sorted buckets are emitted. Output is written sequentially by distribution sort then,
+     * whatever the strategy is, and its size is not known in advance. Prefix sorting and selection do not combine.
+     */
+    public ExternalMemorySort<E> withCombiner(Combiner<E> combiner) {
+        this.combiner = combiner;
+        return this;
+    }
+
+    /**
+     * Keeps one of equal elements only.
+     */
+    public ExternalMemorySort<E> withDistinct() {
+        return withCombiner(new Combiner<E>() {
+            @Override
+            public E combine(E left, E right) {
+                return left;
+            }
+        });
+    }
+
+    /**
+     * Buckets of the last distribution sort, empty if it has fitted into memory.
+     */
+    public List<BucketStatistics> getBucketStatistics() {
+        synchronized (bucketStatistics) {
+            return new ArrayList<>(bucketStatistics);
+        }
     }
 
     public void sort(Path inputPath, Path outputPath, Comparator<E> comparator) throws IOException {
-        DistributionSort<E> sorter = new DistributionSort<E>(comparator, channelIterator, list, bufferCount, inputPath, tmpDir);
-        sorter.splitChunksAndSort();
-        sorter.directoryToSortedBinaryFile(tmpDir, outputPath, channelIterator.getBuffer());
+        bucketStatistics.clear();
+        if (combiner != null) {
+            sortCombined(inputPath, outputPath, comparator);
+        } else if (strategy == Strategy.MERGE) {
+            new MergeSort<>(comparator, channelIterator, list, tmpDirs).sort(inputPath, outputPath);
+        } else {
+            writePrefix(inputPath, outputPath, Long.MAX_VALUE, comparator);
+        }
+    }
+
+    /**
+     * Sorts a channel of unknown size, such as a pipe or a socket, which is read once to its end and closed.
+     * Input is partitioned as by distribution sort with {@link Pivots#FIRST_LOAD} pivots whatever the strategy is.
+     */
+    public void sort(ReadableByteChannel input, Path outputPath, Comparator<E> comparator) throws IOException {
+        Preconditions.checkState(combiner == null, "Combined sort of a channel is not supported");
+        bucketStatistics.clear();
+        try (FileChannel output = FileChannel.open(outputPath, WRITE, CREATE, TRUNCATE_EXISTING);
+             SpillStore spillStore = newSpillStore(0)) {
+            configure(new DistributionSort<E>(comparator, channelIterator, list, fanOut(list), input, spillStore, output, 0))
+                    .splitChunksAndSort();
+        }
+    }
+
+    /**
+     * Writes the given number of smallest elements in sorted order, the whole input if it has less.
+     * Input is partitioned as by distribution sort whatever the strategy is, buckets past the prefix are never sorted.
+     */
+    public void sortPrefix(Path inputPath, Path outputPath, long count, Comparator<E> comparator) throws IOException {
+        Preconditions.checkState(combiner == null, "Prefix of combined elements is not supported");
+        bucketStatistics.clear();
+        writePrefix(inputPath, outputPath, count, comparator);
+    }
+
+    private void writePrefix(Path inputPath, Path outputPath, long count, Comparator<E> comparator) throws IOException {
+        Preconditions.checkArgument(count >= 0, "Count " + count);
+        long size = Files.size(inputPath);
+        int elementSize = list.getSerializer().elementSize();
+        long outputSize = count > size / elementSize ? size : count * elementSize;
+        try (FileChannel output = FileChannel.open(outputPath, WRITE, CREATE);
+             SpillStore spillStore = newSpillStore(size)) {
+            if (outputSize > 0) {
+                // preallocates output, so that buckets can be written at their offsets in any order
+                output.write(ByteBuffer.allocate(1), outputSize - 1);
+            }
+            newDistributionSort(comparator, list, inputPath, spillStore, output)
+                    .withOutputLimit(outputSize)
+                    .splitChunksAndSort();
+            output.truncate(outputSize);
+        }
+    }
+
+    /**
+     * Element of the given rank, counted from 0, in sorted order. Input is partitioned once per level as by
+     * distribution sort whatever the strategy is, but only the bucket holding the rank is kept, nothing is sorted but it.
+     */
+    public E select(Path inputPath, long rank, Comparator<E> comparator) throws IOException {
+        Preconditions.checkState(combiner == null, "Selection among combined elements is not supported");
+        bucketStatistics.clear();
+        long size = Files.size(inputPath);
+        Preconditions.checkArgument(rank >= 0 && rank < size / list.getSerializer().elementSize(), "Rank " + rank);
+        try (SpillStore spillStore = newSpillStore(size)) {
+            return newDistributionSort(comparator, list, inputPath, spillStore, null).select(rank);
+        }
+    }
+
+    /**
+     * Sorted elements of the input, nothing is written but temporary files. Buckets are sorted in memory one
+     * by one when iteration reaches them, so memory of the sort is in use until the result is closed.
+     * Input is partitioned as by distribution sort whatever the strategy is, buckets are never resident.
+     */
+    public SortedElements<E> iterateSorted(Path inputPath, Comparator<E> comparator) throws IOException {
+        bucketStatistics.clear();
+        return iterateSorted(inputPath, comparator, list);
+    }
+
+    private SortedElements<E> iterateSorted(Path inputPath, Comparator<E> comparator, ByteBuffersList<E> list) throws IOException {
+        // closed in reverse order: the bucket being read, then the spill store
+        Closer resources = Closer.create();
+        try {
+            SpillStore spillStore = resources.register(newSpillStore(Files.size(inputPath)));
+            Iterator<E> sorted = resources.register(newDistributionSort(comparator, list, inputPath, spillStore, null)
+                    .withResidentBuckets(false)
+                    .withCombiner(combiner)
+                    .iterateSorted());
+            if (combiner != null) {
+                sorted = new CombiningIterator<>(sorted, comparator, combiner);
+            }
+            return new SortedElements<>(sorted, resources);
+        } catch (IOException | RuntimeException e) {
+            resources.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Streams combined sorted elements into the output through a write buffer taken from memory.
+     */
+    private void sortCombined(Path inputPath, Path outputPath, Comparator<E> comparator) throws IOException {
+        List<ByteBuffer> pool = list.getBuffersPool();
+        ByteBuffer writeBuffer = Utils.sliceListBuffersPool(pool, channelIterator.bufferSize(), 1).get(0);
+        ByteBuffersList<E> sortList = list.newList(Utils.sliceListBuffersPoolTail(pool,
+                Utils.sliceListBuffersPoolEnd(pool, channelIterator.bufferSize(), 1)));
+        try (SortedElements<E> sorted = iterateSorted(inputPath, comparator, sortList);
+             ChannelWriter<E> writer = new ChannelWriter<>(list.getSerializer(), writeBuffer,
+                     FileChannel.open(outputPath, WRITE, CREATE, TRUNCATE_EXISTING))) {
+            for (E element : sorted) {
+                writer.writeElement(element);
+            }
+        }
+    }
+
+    /**
+     * Merges unsorted delta into a sorted file, so that only the delta is sorted. Sorted elements less than the least
+     * element of the delta are found by binary search over fixed size elements and copied as bytes, the rest is merged
+     * with the delta in one streaming pass. The result is written to a temporary file next to the output and moved
+     * over it, so the output may be the sorted file itself and is left intact if the merge fails.
+     * Delta is sorted as by {@link #iterateSorted}.
+     */
+    public void mergeInto(Path sortedPath, Path deltaPath, Path outputPath, Comparator<E> comparator) throws IOException {
+        Preconditions.checkState(combiner == null, "Merge of combined elements is not supported");
+        bucketStatistics.clear();
+        Path outputDir = outputPath.toAbsolutePath().getParent();
+        Path mergedPath = Files.createTempFile(outputDir, outputPath.getFileName() + ".merge-", ".tmp");
+        List<ByteBuffer> pool = list.getBuffersPool();
+        List<ByteBuffer> mergeBuffers = Utils.sliceListBuffersPool(pool, channelIterator.bufferSize(), 2);
+        ByteBuffersList<E> sortList = list.newList(Utils.sliceListBuffersPoolTail(pool,
+                Utils.sliceListBuffersPoolEnd(pool, channelIterator.bufferSize(), 2)));
+        try {
+            try (SortedElements<E> sortedDelta = iterateSorted(deltaPath, comparator, sortList);
+                 FileChannel sorted = FileChannel.open(sortedPath, READ);
+                 FileChannel merged = FileChannel.open(mergedPath, WRITE)) {
+                DeltaMerger<E> merger = new DeltaMerger<>(list.getSerializer(), comparator, sorted,
+                        mergeBuffers.get(0), mergeBuffers.get(1));
+                PeekingIterator<E> delta = Iterators.peekingIterator(sortedDelta.iterator());
+                long mergeFrom = delta.hasNext() ? merger.lowerBound(delta.peek()) : sorted.size();
+                DeltaMerger.transfer(sorted, 0, mergeFrom, merged);
+                merger.merge(mergeFrom, delta, merged);
+                merged.force(false);
+            }
+            Files.move(mergedPath, outputPath, ATOMIC_MOVE, REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(mergedPath);
+        }
+    }
+
+    private SpillStore newSpillStore(long inputSize) throws IOException {
+        List<Path> spillFiles = new ArrayList<>(tmpDirs.size());
+        for (Path tmpDir : tmpDirs) {
+            Preconditions.checkArgument(Files.exists(tmpDir) && Files.isDirectory(tmpDir), tmpDir);
+            spillFiles.add(Paths.get(tmpDir.toString(), "spill-store"));
+        }
+        return new SpillStore(spillFiles, channelIterator.bufferSize(),
+                inputSize < list.capacityInBytes() || compressSpills ? 0 : inputSize, placement);
+    }
+
+    private DistributionSort<E> newDistributionSort(Comparator<E> comparator, ByteBuffersList<E> list, Path inputPath,
+                                                    SpillStore spillStore, FileChannel output) {
+        return configure(new DistributionSort<E>(comparator, channelIterator, list, fanOut(list), inputPath, spillStore, output, 0))
+                .withPivots(pivots);
+    }
+
+    private int fanOut(ByteBuffersList<E> list) {
+        // list may be smaller than the memory when part of it is taken for a write buffer
+        long maxBufferCount = list.capacityInBytes() / channelIterator.bufferSize() - 1;
+        return (int) Math.max(2, Math.min(bufferCount, maxBufferCount));
+    }
+
+    private DistributionSort<E> configure(DistributionSort<E> sort) {
+        return sort
+                .withSortThreads(sortThreads)
+                .withPartitionThreads(partitionThreads)
+                .withRadixSort(radixSort)
+                .withCompressedSpills(compressSpills)
+                .withResidentBuckets(residentBuckets)
+                .withStatistics(bucketStatistics, 0);
     }
 }
@@ -1,7 +1,16 @@
 package aonuchin.sort;
 
+import aonuchin.nio.ByteBuffersList;
+import aonuchin.nio.LongBuffersList;
+import aonuchin.nio.NormalizedKeySerializer;
+import aonuchin.nio.OrderPreservingSerializer;
+import aonuchin.nio.RawComparator;
+import aonuchin.nio.VarLengthBuffersList;
 import com.google.common.base.Preconditions;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.RandomAccess;
@@ -12,6 +21,7 @@ import java.util.concurrent.RecursiveAction;
 // Code was taken from JDK6 Arrays.sort and then modified to be parallel and work with List
 public class InPlaceParallelSort {
     private static final int DEFAULT_THRESHOLD = 500000;
+    private static final int LSD_THRESHOLD = 1 << 16;
     private static ForkJoinPool forkJoin = new ForkJoinPool();
 
     public static <T> void sort(List<T> list, Comparator<T> comparator) {
@@ -29,6 +39,146 @@ public class InPlaceParallelSort {
         }
     }
 
+    /**
+     * Sorts longs in natural order right in the off-heap buffers of the list, no element is boxed.
+     */
+    public static void sort(LongBuffersList list) {
+        sort(list, DEFAULT_THRESHOLD);
+    }
+
+    public static void sort(LongBuffersList list, int threshold) {
+        try {
+            forkJoin.submit(new LongParallelSorter(list, 0, list.size(), threshold)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sorts elements in their serialized form: they are compared by the raw comparator and swapped as byte ranges,
+     * so sorting allocates no objects however wide elements are.
+     */
+    public static <T> void rawSort(ByteBuffersList<T> list, RawComparator<T> comparator) {
+        rawSort(list, comparator, DEFAULT_THRESHOLD);
+    }
+
+    public static <T> void rawSort(ByteBuffersList<T> list, RawComparator<T> comparator, int threshold) {
+        try {
+            forkJoin.submit(new RawParallelSorter<>(list, comparator, 0, list.size(), threshold)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sorts (normalized key prefix, index) pairs on heap, falling back to the comparator only when prefixes tie,
+     * then permutes the elements following the cycles of the permutation, so every element is moved once.
+     * Pairs take 12 bytes per element, which is small for wide elements. See {@link NormalizedKeySerializer}.
+     */
+    public static <T> void pointerSort(ByteBuffersList<T> list, Comparator<T> comparator) {
+        pointerSort(list, comparator, DEFAULT_THRESHOLD);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> void pointerSort(ByteBuffersList<T> list, Comparator<T> comparator, int threshold) {
+        Preconditions.checkArgument(list.getSerializer() instanceof NormalizedKeySerializer,
+                "Serializer has no normalized key");
+        NormalizedKeySerializer<T> serializer = (NormalizedKeySerializer<T>) list.getSerializer();
+        int size = list.size();
+        long[] prefixes = new long[size];
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            // flips sign bit, so that signed comparison of prefixes is unsigned one
+            prefixes[i] = serializer.keyPrefix(list.bufferOf(i), list.offsetOf(i)) ^ Long.MIN_VALUE;
+            order[i] = i;
+        }
+        try {
+            forkJoin.submit(new PointerSorter<>(list, comparator, prefixes, order, 0, size, threshold)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+        permute(list, order);
+    }
+
+    /**
+     * Moves element order[i] to position i.
+     */
+    private static <T> void permute(ByteBuffersList<T> list, int[] order) {
+        byte[] cycleStart = new byte[list.getSerializer().elementSize()];
+        for (int i = 0; i < order.length; i++) {
+            if (order[i] == i) {
+                continue;
+            }
+            copy(list, i, cycleStart, true);
+            int j = i;
+            while (order[j] != i) {
+                int k = order[j];
+                copy(list, k, j);
+                order[j] = j;
+                j = k;
+            }
+            copy(list, j, cycleStart, false);
+            order[j] = j;
+        }
+    }
+
+    private static <T> void copy(ByteBuffersList<T> list, int index, byte[] bytes, boolean fromList) {
+        ByteBuffer buffer = list.bufferOf(index);
+        int offset = list.offsetOf(index);
+        for (int k = 0; k < bytes.length; k++) {
+            if (fromList) {
+                bytes[k] = buffer.get(offset + k);
+            } else {
+                buffer.put(offset + k, bytes[k]);
+            }
+        }
+    }
+
+    private static <T> void copy(ByteBuffersList<T> list, int from, int to) {
+        ByteBuffer source = list.bufferOf(from);
+        ByteBuffer target = list.bufferOf(to);
+        int sourceOffset = list.offsetOf(from);
+        int targetOffset = list.offsetOf(to);
+        int elementSize = list.getSerializer().elementSize();
+        int k = 0;
+        for (; k + 8 <= elementSize; k += 8) {
+            target.putLong(targetOffset + k, source.getLong(sourceOffset + k));
+        }
+        for (; k < elementSize; k++) {
+            target.put(targetOffset + k, source.get(sourceOffset + k));
+        }
+    }
+
+    /**
+     * Radix sorts elements by the order preserving key of their serializer, see {@link OrderPreservingSerializer}.
+     * Big ranges are split by the most significant byte in place and in parallel, ranges of at most
+     * 65536 elements are finished by least significant byte passes through heap scratch arrays,
+     * which take twice the size of the range while it is sorted.
+     * Elements are moved as raw bytes, so nothing is deserialized.
+     */
+    public static <T> void radixSort(ByteBuffersList<T> list) {
+        radixSort(list, DEFAULT_THRESHOLD);
+    }
+
+    public static <T> void radixSort(ByteBuffersList<T> list, int threshold) {
+        Preconditions.checkArgument(list.getSerializer() instanceof OrderPreservingSerializer,
+                "Serializer has no order preserving key");
+        try {
+            forkJoin.submit(new RadixSorter<>(list, 0, list.size(), 0, threshold)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private static class ParallelSorter<T> extends RecursiveAction {
         private final List<T> x;
         private final Comparator<T> comparator;
@@ -118,10 +268,407 @@ public class InPlaceParallelSort {
         }
     }
 
+    /**
+     * Quicksort of {@link ParallelSorter} over element indices, subclasses compare and swap the elements
+     * and keep the partition element.
+     */
+    private abstract static class IndexSorter extends RecursiveAction {
+        final int off;
+        final int len;
+        final int threshold;
+
+        IndexSorter(int off, int len, int threshold) {
+            this.off = off;
+            this.len = len;
+            this.threshold = threshold;
+        }
+
+        abstract int compare(int a, int b);
+
+        /**
+         * Keeps the element at the index as the partition element, it is not used after partitioning.
+         */
+        abstract void choosePivot(int index);
+
+        abstract int compareToPivot(int index);
+
+        abstract void swap(int a, int b);
+
+        abstract IndexSorter subtask(int off, int len);
+
+        protected void compute() {
+            // Insertion sort on smallest arrays
+            if (len < 7) {
+                for (int i = off; i < len + off; i++)
+                    for (int j = i; j > off && compare(j - 1, j) > 0; j--)
+                        swap(j, j - 1);
+                return;
+            }
+
+            // Choose a partition element, v
+            int m = off + (len >> 1);       // Small arrays, middle element
+            if (len > 7) {
+                int l = off;
+                int n = off + len - 1;
+                if (len > 40) {        // Big arrays, pseudomedian of 9
+                    int s = len / 8;
+                    l = med3(l, l + s, l + 2 * s);
+                    m = med3(m - s, m, m + s);
+                    n = med3(n - 2 * s, n - s, n);
+                }
+                m = med3(l, m, n); // Mid-size, med of 3
+            }
+            choosePivot(m);
+
+            // Establish Invariant: v* (<v)* (>v)* v*
+            int a = off, b = a, c = off + len - 1, d = c;
+            while (true) {
+                int cb, cc;
+                while (b <= c && (cb = compareToPivot(b)) <= 0) {
+                    if (cb == 0)
+                        swap(a++, b);
+                    b++;
+                }
+                while (c >= b && (cc = compareToPivot(c)) >= 0) {
+                    if (cc == 0)
+                        swap(c, d--);
+                    c--;
+                }
+                if (b > c)
+                    break;
+                swap(b++, c--);
+            }
+
+            // Swap partition elements back to middle
+            int s, n = off + len;
+            s = Math.min(a - off, b - a);
+            vecswap(off, b - s, s);
+            s = Math.min(d - c, n - d - 1);
+            vecswap(b, n - s, s);
+
+            // Recursively sort non-partition-elements
+            if (len < threshold || (b - a) < threshold / 3 || (d - c) < threshold / 3) {
+                if ((b - a) > 1) {
+                    subtask(off, b - a).compute();
+                }
+                if ((d - c) > 1) {
+                    subtask(n - (d - c), (d - c)).compute();
+                }
+            } else {
+                invokeAll(subtask(off, b - a), subtask(n - (d - c), (d - c)));
+            }
+        }
+
+        private int med3(int a, int b, int c) {
+            return (compare(a, b) < 0 ?
+                    (compare(b, c) < 0 ? b : compare(a, c) < 0 ? c : a) :
+                    (compare(b, c) > 0 ? b : compare(a, c) > 0 ? c : a));
+        }
+
+        private void vecswap(int a, int b, int n) {
+            for (int i = 0; i < n; i++, a++, b++)
+                swap(a, b);
+        }
+    }
+
+    private static class LongParallelSorter extends IndexSorter {
+        private final LongBuffersList x;
+        private long pivot;
+
+        private LongParallelSorter(LongBuffersList x, int off, int len, int threshold) {
+            super(off, len, threshold);
+            this.x = x;
+        }
+
+        @Override
+        int compare(int a, int b) {
+            return Long.compare(x.getLong(a), x.getLong(b));
+        }
+
+        @Override
+        void choosePivot(int index) {
+            pivot = x.getLong(index);
+        }
+
+        @Override
+        int compareToPivot(int index) {
+            return Long.compare(x.getLong(index), pivot);
+        }
+
+        @Override
+        void swap(int a, int b) {
+            x.swap(a, b);
+        }
+
+        @Override
+        IndexSorter subtask(int off, int len) {
+            return new LongParallelSorter(x, off, len, threshold);
+        }
+    }
+
+    private static class PointerSorter<T> extends IndexSorter {
+        private final ByteBuffersList<T> list;
+        private final Comparator<T> comparator;
+        private final long[] prefixes;
+        private final int[] order;
+        private long pivotPrefix;
+        private int pivotIndex;
+
+        private PointerSorter(ByteBuffersList<T> list, Comparator<T> comparator, long[] prefixes, int[] order,
+                              int off, int len, int threshold) {
+            super(off, len, threshold);
+            this.list = list;
+            this.comparator = comparator;
+            this.prefixes = prefixes;
+            this.order = order;
+        }
+
+        @Override
+        int compare(int a, int b) {
+            return compare(prefixes[a], order[a], prefixes[b], order[b]);
+        }
+
+        @Override
+        void choosePivot(int index) {
+            pivotPrefix = prefixes[index];
+            pivotIndex = order[index];
+        }
+
+        @Override
+        int compareToPivot(int index) {
+            return compare(prefixes[index], order[index], pivotPrefix, pivotIndex);
+        }
+
+        @SuppressWarnings("unchecked")
+        private int compare(long prefixA, int indexA, long prefixB, int indexB) {
+            if (prefixA != prefixB) {
+                return prefixA < prefixB ? -1 : 1;
+            }
+            if (indexA == indexB) {
+                return 0;
+            }
+            if (comparator instanceof RawComparator) {
+                return ((RawComparator<T>) comparator).compare(list.bufferOf(indexA), list.offsetOf(indexA),
+                        list.bufferOf(indexB), list.offsetOf(indexB));
+            }
+            return comparator.compare(list.get(indexA), list.get(indexB));
+        }
+
+        @Override
+        void swap(int a, int b) {
+            long prefix = prefixes[a];
+            prefixes[a] = prefixes[b];
+            prefixes[b] = prefix;
+            int index = order[a];
+            order[a] = order[b];
+            order[b] = index;
+        }
+
+        @Override
+        IndexSorter subtask(int off, int len) {
+            return new PointerSorter<>(list, comparator, prefixes, order, off, len, threshold);
+        }
+    }
+
+    private static class RawParallelSorter<T> extends IndexSorter {
+        // copy of the partition element, it is not used after partitioning so recursive calls can share it
+        private static final ThreadLocal<ByteBuffer> pivotCopy = new ThreadLocal<>();
+
+        private final ByteBuffersList<T> x;
+        private final RawComparator<T> comparator;
+        private ByteBuffer pivot;
+
+        private RawParallelSorter(ByteBuffersList<T> x, RawComparator<T> comparator, int off, int len, int threshold) {
+            super(off, len, threshold);
+            this.x = x;
+            this.comparator = comparator;
+        }
+
+        @Override
+        int compare(int a, int b) {
+            return comparator.compare(x.bufferOf(a), x.offsetOf(a), x.bufferOf(b), x.offsetOf(b));
+        }
+
+        @Override
+        void choosePivot(int index) {
+            int elementSize = x.getSerializer().elementSize();
+            ByteBuffer copy = pivotCopy.get();
+            if (copy == null || copy.capacity() < elementSize) {
+                copy = ByteBuffer.allocate(elementSize);
+                pivotCopy.set(copy);
+            }
+            ByteBuffer buffer = x.bufferOf(index);
+            int offset = x.offsetOf(index);
+            for (int k = 0; k < elementSize; k++) {
+                copy.put(k, buffer.get(offset + k));
+            }
+            pivot = copy;
+        }
+
+        @Override
+        int compareToPivot(int index) {
+            return comparator.compare(x.bufferOf(index), x.offsetOf(index), pivot, 0);
+        }
+
+        @Override
+        void swap(int a, int b) {
+            x.swapBytes(a, b);
+        }
+
+        @Override
+        IndexSorter subtask(int off, int len) {
+            return new RawParallelSorter<>(x, comparator, off, len, threshold);
+        }
+    }
+
+    private static class RadixSorter<T> extends RecursiveAction {
+        private final ByteBuffersList<T> x;
+        private final OrderPreservingSerializer<T> serializer;
+        private final int off;
+        private final int len;
+        private final int digit;
+        private final int threshold;
+
+        @SuppressWarnings("unchecked")
+        private RadixSorter(ByteBuffersList<T> x, int off, int len, int digit, int threshold) {
+            this.x = x;
+            this.serializer = (OrderPreservingSerializer<T>) x.getSerializer();
+            this.off = off;
+            this.len = len;
+            this.digit = digit;
+            this.threshold = threshold;
+        }
+
+        protected void compute() {
+            int keySize = serializer.keySize();
+            if (len < 2 || digit >= keySize) {
+                return;
+            }
+            // Insertion sort on smallest arrays
+            if (len < 32) {
+                for (int i = off; i < len + off; i++)
+                    for (int j = i; j > off && compareKeys(j - 1, j) > 0; j--)
+                        x.swapBytes(j, j - 1);
+                return;
+            }
+            if (len <= LSD_THRESHOLD) {
+                leastSignificantDigitSort();
+                return;
+            }
+
+            // American flag sort on the current digit
+            int[] heads = new int[257];
+            for (int i = off; i < off + len; i++) {
+                heads[keyByte(i) + 1]++;
+            }
+            heads[0] = off;
+            for (int b = 1; b <= 256; b++) {
+                heads[b] += heads[b - 1];
+            }
+            int[] ends = new int[256];
+            System.arraycopy(heads, 1, ends, 0, 256);
+            for (int b = 0; b < 256; b++) {
+                while (heads[b] < ends[b]) {
+                    int v = keyByte(heads[b]);
+                    if (v == b) {
+                        heads[b]++;
+                    } else {
+                        x.swapBytes(heads[b], heads[v]++);
+                    }
+                }
+            }
+
+            // Recursively sort buckets by the next digit
+            List<RadixSorter<T>> subtasks = new ArrayList<>();
+            int from = off;
+            for (int b = 0; b < 256; b++) {
+                int bucketLength = ends[b] - from;
+                if (bucketLength > 1) {
+                    RadixSorter<T> sorter = new RadixSorter<>(x, from, bucketLength, digit + 1, threshold);
+                    if (bucketLength < threshold / 3) {
+                        sorter.compute();
+                    } else {
+                        subtasks.add(sorter);
+                    }
+                }
+                from = ends[b];
+            }
+            invokeAll(subtasks);
+        }
+
+        /**
+         * Stable counting sort passes from the last key byte up to the current digit, through two scratch arrays
+         * of the size of the range. They are dropped afterwards, so no thread keeps heap beyond the memory budget.
+         */
+        private void leastSignificantDigitSort() {
+            int elementSize = serializer.elementSize();
+            byte[] source = new byte[len * elementSize];
+            byte[] target = new byte[len * elementSize];
+            for (int i = 0; i < len; i++) {
+                ByteBuffer buffer = x.bufferOf(off + i);
+                int offset = x.offsetOf(off + i);
+                for (int k = 0; k < elementSize; k++) {
+                    source[i * elementSize + k] = buffer.get(offset + k);
+                }
+            }
+            int[] counts = new int[257];
+            for (int d = serializer.keySize() - 1; d >= digit; d--) {
+                ByteBuffer wrapped = ByteBuffer.wrap(source);
+                Arrays.fill(counts, 0);
+                for (int i = 0; i < len; i++) {
+                    counts[serializer.keyByte(wrapped, i * elementSize, d) + 1]++;
+                }
+                if (counts[serializer.keyByte(wrapped, 0, d) + 1] == len) {
+                    continue; // all elements share the byte, pass would not move anything
+                }
+                for (int b = 1; b <= 256; b++) {
+                    counts[b] += counts[b - 1];
+                }
+                for (int i = 0; i < len; i++) {
+                    int position = counts[serializer.keyByte(wrapped, i * elementSize, d)]++;
+                    System.arraycopy(source, i * elementSize, target, position * elementSize, elementSize);
+                }
+                byte[] t = source;
+                source = target;
+                target = t;
+            }
+            for (int i = 0; i < len; i++) {
+                ByteBuffer buffer = x.bufferOf(off + i);
+                int offset = x.offsetOf(off + i);
+                for (int k = 0; k < elementSize; k++) {
+                    buffer.put(offset + k, source[i * elementSize + k]);
+                }
+            }
+        }
+
+        private int keyByte(int index) {
+            return serializer.keyByte(x.bufferOf(index), x.offsetOf(index), digit);
+        }
+
+        private int compareKeys(int a, int b) {
+            ByteBuffer bufferA = x.bufferOf(a);
+            ByteBuffer bufferB = x.bufferOf(b);
+            int offsetA = x.offsetOf(a);
+            int offsetB = x.offsetOf(b);
+            for (int d = digit; d < serializer.keySize(); d++) {
+                int diff = serializer.keyByte(bufferA, offsetA, d) - serializer.keyByte(bufferB, offsetB, d);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return 0;
+        }
+    }
+
     /**
      * Swaps x.get(a) with x.get(b).
      */
     private static <T> void swap(List<T> x, int a, int b) {
+        if (x instanceof VarLengthBuffersList) {
+            // elements of variable length can not be replaced, their index entries are swapped instead
+            ((VarLengthBuffersList<T>) x).swap(a, b);
+            return;
+        }
         T t = x.get(a);
         x.set(a, x.get(b));
         x.set(b, t);
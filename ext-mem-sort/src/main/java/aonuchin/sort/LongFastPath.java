@@ -0,0 +1,77 @@
+package aonuchin.sort;
+
+import aonuchin.nio.ByteBuffersList;
+import aonuchin.nio.ChannelIterable;
+import aonuchin.nio.ChannelWriter;
+import aonuchin.nio.LongBuffersList;
+import aonuchin.nio.LongChannelWriter;
+import aonuchin.nio.LongCursor;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Ordering;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Primitive versions of the distribution sort passes, used when longs are sorted in natural order.
+ * Nothing is boxed and no object is allocated per element.
+ */
+class LongFastPath {
+
+    static boolean applies(ByteBuffersList<?> list, Comparator<?> comparator) {
+        return list instanceof LongBuffersList && Ordering.natural().equals(comparator);
+    }
+
+    static long sampleAndFindMin(ChannelIterable<Long> population, LongBuffersList sample) throws IOException {
+        sample.clear();
+        int sampleCapacity = sample.capacity();
+        long i = 0;
+        long min = Long.MAX_VALUE;
+        LongCursor cursor = new LongCursor(population);
+        while (cursor.hasNext()) {
+            long element = cursor.next();
+            min = Math.min(min, element);
+            if (i < sampleCapacity) {
+                sample.addLong(element);
+            } else {
+                long j = ThreadLocalRandom.current().nextLong(i + 1);
+                if (j < sampleCapacity) {
+                    sample.setLong((int) j, element);
+                }
+            }
+            i++;
+        }
+        Preconditions.checkArgument(i >= sampleCapacity, i + " " + sampleCapacity);
+        return min;
+    }
+
+    /**
+     * Same routing as {@link SplitterTree}, a block of longs at a time.
+     *
+     * @return whether any element was less than every pivot
+     */
+    static boolean partition(ChannelIterable<Long> input, List<Long> pivots, List<ChannelWriter<Long>> writers) throws IOException {
+        LongSplitterTree tree = new LongSplitterTree(pivots);
+        LongChannelWriter[] longWriters = new LongChannelWriter[writers.size()];
+        for (int i = 0; i < longWriters.length; i++) {
+            longWriters[i] = (LongChannelWriter) writers.get(i);
+        }
+        long[] block = new long[SplitterTree.BLOCK_SIZE];
+        int[] buckets = new int[SplitterTree.BLOCK_SIZE];
+        boolean belowFirstPivot = false;
+        LongCursor cursor = new LongCursor(input);
+        while (cursor.hasNext()) {
+            int count = 0;
+            while (count < block.length && cursor.hasNext()) {
+                block[count++] = cursor.next();
+            }
+            belowFirstPivot |= tree.classify(block, count, buckets);
+            for (int i = 0; i < count; i++) {
+                longWriters[buckets[i]].writeLong(block[i]);
+            }
+        }
+        return belowFirstPivot;
+    }
+}
@@ -0,0 +1,72 @@
+package aonuchin.sort;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Primitive version of {@link SplitterTree} for longs in natural order. A level of the descent is a comparison
+ * result added to the node index, which compiles to a conditional set rather than a jump.
+ */
+class LongSplitterTree {
+    private final long[] pivots;
+    private final long[] tree;
+    private final int[] firstEqual;
+    private final int leaves;
+    private final int levels;
+
+    LongSplitterTree(List<Long> pivots) {
+        Preconditions.checkArgument(!pivots.isEmpty(), "No pivots");
+        this.pivots = new long[pivots.size()];
+        for (int i = 0; i < pivots.size(); i++) {
+            this.pivots[i] = pivots.get(i);
+        }
+        this.leaves = SplitterTree.leavesFor(pivots.size());
+        this.levels = Integer.numberOfTrailingZeros(leaves);
+        List<Long> splitters = new ArrayList<>(pivots.subList(1, pivots.size()));
+        while (splitters.size() < leaves - 1) {
+            splitters.add(pivots.get(pivots.size() - 1));
+        }
+        List<Long> boxedTree = new ArrayList<>(Collections.<Long>nCopies(leaves, null));
+        SplitterTree.fill(boxedTree, 1, 0, splitters);
+        this.tree = new long[leaves];
+        for (int node = 1; node < leaves; node++) {
+            tree[node] = boxedTree.get(node);
+        }
+        this.firstEqual = new int[pivots.size()];
+        for (int i = 1; i < pivots.size(); i++) {
+            firstEqual[i] = this.pivots[i - 1] == this.pivots[i] ? firstEqual[i - 1] : i;
+        }
+    }
+
+    /**
+     * Buckets of the first count elements of the block.
+     *
+     * @return whether any of them was less than every pivot
+     */
+    boolean classify(long[] block, int count, int[] buckets) {
+        for (int i = 0; i < count; i++) {
+            buckets[i] = 1;
+        }
+        for (int level = 0; level < levels; level++) {
+            for (int i = 0; i < count; i++) {
+                int node = buckets[i];
+                buckets[i] = 2 * node + (tree[node] <= block[i] ? 1 : 0);
+            }
+        }
+        boolean belowFirstPivot = false;
+        long firstPivot = pivots[0];
+        int lastBucket = pivots.length - 1;
+        for (int i = 0; i < count; i++) {
+            int bucket = Math.min(buckets[i] - leaves, lastBucket);
+            belowFirstPivot |= block[i] < firstPivot;
+            if (firstEqual[bucket] < bucket && block[i] == pivots[bucket]) {
+                bucket = firstEqual[bucket] + i % (bucket - firstEqual[bucket]);
+            }
+            buckets[i] = bucket;
+        }
+        return belowFirstPivot;
+    }
+}
@@ -0,0 +1,95 @@
+package aonuchin.sort;
+
+import com.google.common.collect.AbstractIterator;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * K-way merge of sorted iterators. Internal nodes keep the loser of the match played in them,
+ * so advancing the winner costs exactly log2(k) comparisons. Ties are resolved by iterator index,
+ * which keeps the merge stable.
+ */
+public class LoserTree<E> extends AbstractIterator<E> {
+    private final List<? extends Iterator<E>> sources;
+    private final Comparator<E> comparator;
+    private final int k;
+    private final int[] tree;
+    private final Object[] heads;
+    private final boolean[] exhausted;
+
+    public LoserTree(List<? extends Iterator<E>> sources, Comparator<E> comparator) {
+        this.sources = sources;
+        this.comparator = comparator;
+        this.k = sources.size();
+        this.tree = new int[Math.max(1, k)];
+        this.heads = new Object[k];
+        this.exhausted = new boolean[k];
+        for (int i = 0; i < k; i++) {
+            advance(i);
+        }
+        if (k > 0) {
+            tree[0] = init(1);
+        }
+    }
+
+    private int init(int node) {
+        if (node >= k) {
+            return node - k;
+        }
+        int left = init(2 * node);
+        int right = init(2 * node + 1);
+        if (beats(left, right)) {
+            tree[node] = right;
+            return left;
+        }
+        tree[node] = left;
+        return right;
+    }
+
+    private void advance(int source) {
+        Iterator<E> iterator = sources.get(source);
+        if (iterator.hasNext()) {
+            heads[source] = iterator.next();
+        } else {
+            heads[source] = null;
+            exhausted[source] = true;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean beats(int a, int b) {
+        if (exhausted[a]) {
+            return false;
+        }
+        if (exhausted[b]) {
+            return true;
+        }
+        int compare = comparator.compare((E) heads[a], (E) heads[b]);
+        return compare < 0 || (compare == 0 && a < b);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected E computeNext() {
+        if (k == 0) {
+            return endOfData();
+        }
+        int winner = tree[0];
+        if (exhausted[winner]) {
+            return endOfData();
+        }
+        E result = (E) heads[winner];
+        advance(winner);
+        for (int node = (winner + k) / 2; node > 0; node /= 2) {
+            if (beats(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+        return result;
+    }
+}
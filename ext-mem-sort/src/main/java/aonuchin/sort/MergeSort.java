@@ -0,0 +1,186 @@
+package aonuchin.sort;
+
+import aonuchin.Utils;
+import aonuchin.nio.ByteBuffersList;
+import aonuchin.nio.ChannelIterable;
+import aonuchin.nio.ChannelWriter;
+import aonuchin.nio.ElementSerializer;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * External merge sort: runs of about twice the memory size are produced by replacement selection,
+ * then merged with a {@link LoserTree} whose fan-in is the number of i/o buffers fitting into memory.
+ *
+ * See http://www.ittc.ku.edu/~jsv/Papers/Vit.IO_book.pdf 5.2 Sort by Merging
+ */
+class MergeSort<E> {
+    private final ChannelIterable.Builder<E> channelIterator;
+    private final ByteBuffersList<E> list;
+    private final ElementSerializer<E> serializer;
+    private final Comparator<E> comparator;
+    // runs are spread over the directories round robin
+    private final List<Path> tmpDirs;
+    private int runsCreated = 0;
+
+    MergeSort(Comparator<E> comparator, ChannelIterable.Builder<E> channelIterator, ByteBuffersList<E> list, List<Path> tmpDirs) {
+        this.channelIterator = channelIterator;
+        this.list = list;
+        this.serializer = list.getSerializer();
+        this.comparator = comparator;
+        this.tmpDirs = tmpDirs;
+    }
+
+    public void sort(Path inputPath, Path outputPath) throws IOException {
+        Preconditions.checkArgument(Files.exists(inputPath), inputPath);
+        for (Path tmpDir : tmpDirs) {
+            Preconditions.checkArgument(Files.exists(tmpDir) && Files.isDirectory(tmpDir), tmpDir);
+        }
+        List<Path> runs = generateRuns(inputPath);
+        int fanIn = fanIn();
+        while (runs.size() > fanIn) {
+            List<Path> mergedRuns = new ArrayList<>();
+            for (int from = 0; from < runs.size(); from += fanIn) {
+                List<Path> group = runs.subList(from, Math.min(runs.size(), from + fanIn));
+                Path mergedRun = nextRunPath();
+                merge(group, mergedRun);
+                mergedRuns.add(mergedRun);
+            }
+            runs = mergedRuns;
+        }
+        if (runs.size() == 1) {
+            Files.move(runs.get(0), outputPath, REPLACE_EXISTING);
+        } else {
+            merge(runs, outputPath);
+        }
+    }
+
+    int fanIn() {
+        long buffers = list.capacityInBytes() / channelIterator.bufferSize() - 2;
+        Preconditions.checkArgument(buffers >= 2, "Memory should fit at least 4 i/o buffers " + buffers);
+        return (int) Math.min(buffers, Integer.MAX_VALUE / 2);
+    }
+
+    List<Path> generateRuns(Path inputPath) throws IOException {
+        List<ByteBuffer> pool = list.getBuffersPool();
+        ByteBuffer writeBuffer = Utils.sliceListBuffersPool(pool, channelIterator.bufferSize(), 1).get(0);
+        ByteBuffersList<E> heap = list.newList(Utils.sliceListBuffersPoolTail(pool,
+                Utils.sliceListBuffersPoolEnd(pool, channelIterator.bufferSize(), 1)));
+        Preconditions.checkArgument(heap.capacity() > 0);
+        List<Path> runs = new ArrayList<>();
+        try (ChannelIterable<E> elementsInFile = channelIterator.iterateOverFile(inputPath)) {
+            Iterator<E> input = elementsInFile.iterator();
+            while (heap.size() < heap.capacity() && input.hasNext()) {
+                heap.add(input.next());
+            }
+            int end = heap.size();
+            while (end > 0) {
+                heapify(heap, end);
+                int heapSize = end;
+                Path run = nextRunPath();
+                runs.add(run);
+                try (ChannelWriter<E> writer = new ChannelWriter<>(serializer, writeBuffer,
+                        Files.newByteChannel(run, WRITE, CREATE))) {
+                    while (heapSize > 0) {
+                        E top = heap.get(0);
+                        writer.writeElement(top);
+                        if (input.hasNext()) {
+                            E element = input.next();
+                            if (comparator.compare(element, top) >= 0) {
+                                heap.set(0, element);
+                            } else {
+                                heapSize--;
+                                heap.set(0, heap.get(heapSize));
+                                heap.set(heapSize, element);
+                            }
+                        } else {
+                            heapSize--;
+                            heap.set(0, heap.get(heapSize));
+                            end--;
+                            if (end > heapSize) {
+                                heap.set(heapSize, heap.get(end));
+                            }
+                        }
+                        siftDown(heap, 0, heapSize);
+                    }
+                }
+            }
+        }
+        return runs;
+    }
+
+    void merge(List<Path> runs, Path outputPath) throws IOException {
+        int bufferSize = channelIterator.bufferSize();
+        List<ByteBuffer> buffers = Utils.sliceListBuffersPool(list.getBuffersPool(), bufferSize, runs.size() + 1);
+        List<ChannelIterable<E>> inputs = new ArrayList<>(runs.size());
+        try {
+            List<Iterator<E>> iterators = new ArrayList<>(runs.size());
+            for (int i = 0; i < runs.size(); i++) {
+                ChannelIterable<E> input = channelIterator.getBackend().iterate(runs.get(i), buffers.get(i), serializer);
+                inputs.add(input);
+                iterators.add(input.iterator());
+            }
+            try (ChannelWriter<E> writer = new ChannelWriter<>(serializer, buffers.get(runs.size()),
+                    Files.newByteChannel(outputPath, WRITE, CREATE))) {
+                LoserTree<E> merged = new LoserTree<>(iterators, comparator);
+                while (merged.hasNext()) {
+                    writer.writeElement(merged.next());
+                }
+            }
+        } finally {
+            for (ChannelIterable<E> input : inputs) {
+                input.close();
+            }
+        }
+        for (Path run : runs) {
+            Files.delete(run);
+        }
+    }
+
+    private Path nextRunPath() {
+        Path tmpDir = tmpDirs.get(runsCreated % tmpDirs.size());
+        return Paths.get(tmpDir.toString(), "run-file-" + runsCreated++);
+    }
+
+    private void heapify(List<E> heap, int size) {
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(heap, i, size);
+        }
+    }
+
+    private void siftDown(List<E> heap, int i, int size) {
+        E element = heap.get(i);
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            E childElement = heap.get(child);
+            if (child + 1 < size) {
+                E rightElement = heap.get(child + 1);
+                if (comparator.compare(rightElement, childElement) < 0) {
+                    child++;
+                    childElement = rightElement;
+                }
+            }
+            if (comparator.compare(element, childElement) <= 0) {
+                break;
+            }
+            heap.set(i, childElement);
+            i = child;
+        }
+        if (size > 0) {
+            heap.set(i, element);
+        }
+    }
+}
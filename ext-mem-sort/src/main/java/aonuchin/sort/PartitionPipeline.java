@@ -0,0 +1,133 @@
+package aonuchin.sort;
+
+import aonuchin.Utils;
+import aonuchin.nio.ChannelWriter;
+import aonuchin.nio.ElementSerializer;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Bounded reader / classifier pipeline for the partitioning pass of distribution sort.
+ * The read buffer is cut into blocks: a read-ahead thread fills free blocks from the channel while
+ * classifier threads take filled blocks, classify their elements by the splitter tree and hand every element
+ * to the writer of its bucket.
+ * Writers are expected to be thread safe and to flush in background, e.g. {@link aonuchin.nio.AsyncChannelWriter}.
+ */
+class PartitionPipeline<E> {
+    private static final ByteBuffer END_OF_INPUT = ByteBuffer.allocate(0);
+
+    private final ElementSerializer<E> serializer;
+    private final SplitterTree<E> classifier;
+    private final List<ChannelWriter<E>> writers;
+    private final int classifierThreads;
+    private volatile boolean belowFirstPivot = false;
+
+    PartitionPipeline(ElementSerializer<E> serializer, SplitterTree<E> classifier, List<ChannelWriter<E>> writers,
+                      int classifierThreads) {
+        Preconditions.checkArgument(classifierThreads > 0);
+        this.serializer = serializer;
+        this.classifier = classifier;
+        this.writers = writers;
+        this.classifierThreads = classifierThreads;
+    }
+
+    /**
+     * @return whether any element was less than every pivot
+     */
+    public boolean partition(final ReadableByteChannel channel, ByteBuffer readBuffer) throws IOException {
+        int blocksCount = 2 * classifierThreads;
+        int blockSize = readBuffer.capacity() / blocksCount;
+        blockSize -= blockSize % serializer.elementSize();
+        Preconditions.checkArgument(blockSize > 0, "Read buffer is too small for " + blocksCount + " blocks");
+        final BlockingQueue<ByteBuffer> freeBlocks = new ArrayBlockingQueue<>(blocksCount);
+        final BlockingQueue<ByteBuffer> filledBlocks = new ArrayBlockingQueue<>(blocksCount + classifierThreads);
+        ByteBuffer duplicate = readBuffer.duplicate();
+        for (int i = 0; i < blocksCount; i++) {
+            duplicate.limit((i + 1) * blockSize);
+            duplicate.position(i * blockSize);
+            freeBlocks.add(duplicate.slice());
+        }
+
+        ExecutorService stages = Executors.newFixedThreadPool(classifierThreads + 1);
+        CompletionService<Void> completion = new ExecutorCompletionService<>(stages);
+        try {
+            completion.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    boolean endOfChannel = false;
+                    while (!endOfChannel) {
+                        ByteBuffer block = freeBlocks.take();
+                        block.clear();
+                        while (block.hasRemaining()) {
+                            if (channel.read(block) < 0) {
+                                endOfChannel = true;
+                                break;
+                            }
+                        }
+                        block.flip();
+                        Preconditions.checkArgument(block.remaining() % serializer.elementSize() == 0,
+                                block.remaining() + " " + serializer.elementSize());
+                        if (block.hasRemaining()) {
+                            filledBlocks.put(block);
+                        }
+                    }
+                    for (int i = 0; i < classifierThreads; i++) {
+                        filledBlocks.put(END_OF_INPUT);
+                    }
+                    return null;
+                }
+            });
+            for (int i = 0; i < classifierThreads; i++) {
+                completion.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        ByteBuffer block;
+                        while ((block = filledBlocks.take()) != END_OF_INPUT) {
+                            if (classifier.partition(elementsOf(block), writers)) {
+                                belowFirstPivot = true;
+                            }
+                            freeBlocks.put(block);
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (int i = 0; i < classifierThreads + 1; i++) {
+                completion.take().get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new RuntimeException(e.getCause());
+        } finally {
+            stages.shutdownNow();
+        }
+        return belowFirstPivot;
+    }
+
+    private Iterator<E> elementsOf(final ByteBuffer block) {
+        return new AbstractIterator<E>() {
+            @Override
+            protected E computeNext() {
+                return block.hasRemaining() ? Utils.readElement(serializer, block) : endOfData();
+            }
+        };
+    }
+}
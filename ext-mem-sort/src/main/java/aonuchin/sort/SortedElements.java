@@ -0,0 +1,34 @@
+package aonuchin.sort;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Result of a sort which is read instead of being written to a file. Elements are sorted lazily while
+ * being iterated, so it can be iterated only once. Closing releases temporary files of the sort.
+ */
+public class SortedElements<E> implements Iterable<E>, Closeable {
+    private final Iterator<E> iterator;
+    private final Closeable resources;
+    private boolean iterated = false;
+
+    SortedElements(Iterator<E> iterator, Closeable resources) {
+        this.iterator = iterator;
+        this.resources = resources;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        Preconditions.checkState(!iterated, "Sorted elements can be iterated only once");
+        iterated = true;
+        return iterator;
+    }
+
+    @Override
+    public void close() throws IOException {
+        resources.close();
+    }
+}
@@ -0,0 +1,146 @@
+package aonuchin.sort;
+
+import aonuchin.nio.ChannelWriter;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Classifier of elements into buckets of distribution sort, as in super scalar sample sort. Pivots but the first
+ * are splitters of an implicit search tree in breadth-first (Eytzinger) order: children of node i are 2i and 2i + 1,
+ * so the top levels share cache lines and no pointers are followed. Splitters are padded by the last pivot
+ * up to a complete tree, so every element descends the same number of levels. A block of elements descends
+ * level by level, descents of different elements are independent.
+ * <p>
+ * Routing is that of the floor of pivots: the bucket of the greatest pivot not greater than the element,
+ * the first bucket for elements below every pivot. Elements equal to a duplicated pivot are spread round robin
+ * over all but the last of its buckets, the last one takes elements between it and the next pivot.
+ */
+class SplitterTree<E> {
+    static final int BLOCK_SIZE = 256;
+
+    private final Comparator<E> comparator;
+    private final List<E> pivots;
+    private final List<E> tree;
+    private final int[] firstEqual;
+    private final int leaves;
+    private final int levels;
+    // blocks of classifier threads, reused by every block they partition
+    private final ThreadLocal<Block<E>> blocks = new ThreadLocal<Block<E>>() {
+        @Override
+        protected Block<E> initialValue() {
+            return new Block<>();
+        }
+    };
+
+    private static class Block<E> {
+        @SuppressWarnings("unchecked")
+        private final E[] elements = (E[]) new Object[BLOCK_SIZE];
+        private final int[] buckets = new int[BLOCK_SIZE];
+    }
+
+    SplitterTree(List<E> pivots, Comparator<E> comparator) {
+        Preconditions.checkArgument(!pivots.isEmpty(), "No pivots");
+        this.comparator = comparator;
+        this.pivots = new ArrayList<>(pivots);
+        this.leaves = leavesFor(pivots.size());
+        this.levels = Integer.numberOfTrailingZeros(leaves);
+        this.tree = new ArrayList<>(Collections.<E>nCopies(leaves, null));
+        fill(tree, 1, 0, splitters(pivots));
+        this.firstEqual = new int[pivots.size()];
+        for (int i = 1; i < pivots.size(); i++) {
+            boolean duplicated = comparator.compare(pivots.get(i - 1), pivots.get(i)) == 0;
+            firstEqual[i] = duplicated ? firstEqual[i - 1] : i;
+        }
+    }
+
+    /**
+     * Leaves of the complete tree for the given number of buckets, a power of two.
+     */
+    static int leavesFor(int buckets) {
+        return buckets == 1 ? 1 : Integer.highestOneBit(buckets - 1) << 1;
+    }
+
+    /**
+     * Pivots but the first, padded by the last one to the number of tree nodes.
+     */
+    private List<E> splitters(List<E> pivots) {
+        List<E> splitters = new ArrayList<>(pivots.subList(1, pivots.size()));
+        while (splitters.size() < leaves - 1) {
+            splitters.add(pivots.get(pivots.size() - 1));
+        }
+        return splitters;
+    }
+
+    /**
+     * Lays out sorted splitters in breadth-first order by an in-order walk of the implicit tree.
+     */
+    static <T> int fill(List<T> tree, int node, int next, List<? extends T> sorted) {
+        if (node >= tree.size()) {
+            return next;
+        }
+        next = fill(tree, 2 * node, next, sorted);
+        tree.set(node, sorted.get(next++));
+        return fill(tree, 2 * node + 1, next, sorted);
+    }
+
+    /**
+     * Writes every element to the writer of its bucket, a block at a time.
+     *
+     * @return whether any element was less than every pivot
+     */
+    boolean partition(Iterator<E> elements, List<? extends ChannelWriter<E>> writers) throws IOException {
+        Block<E> block = blocks.get();
+        boolean belowFirstPivot = false;
+        while (elements.hasNext()) {
+            int count = 0;
+            while (count < BLOCK_SIZE && elements.hasNext()) {
+                block.elements[count++] = elements.next();
+            }
+            belowFirstPivot |= classify(block.elements, count, block.buckets);
+            for (int i = 0; i < count; i++) {
+                writers.get(block.buckets[i]).writeElement(block.elements[i]);
+            }
+        }
+        // elements of the last block are not kept reachable
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            block.elements[i] = null;
+        }
+        return belowFirstPivot;
+    }
+
+    /**
+     * Buckets of the first count elements of the block.
+     *
+     * @return whether any of them was less than every pivot
+     */
+    boolean classify(E[] block, int count, int[] buckets) {
+        for (int i = 0; i < count; i++) {
+            buckets[i] = 1;
+        }
+        for (int level = 0; level < levels; level++) {
+            for (int i = 0; i < count; i++) {
+                int node = buckets[i];
+                buckets[i] = 2 * node + (comparator.compare(tree.get(node), block[i]) <= 0 ? 1 : 0);
+            }
+        }
+        boolean belowFirstPivot = false;
+        int lastBucket = pivots.size() - 1;
+        for (int i = 0; i < count; i++) {
+            // leaf index past the last pivot counts the padding, which equals the last pivot
+            int bucket = Math.min(buckets[i] - leaves, lastBucket);
+            if (bucket == 0) {
+                belowFirstPivot |= comparator.compare(block[i], pivots.get(0)) < 0;
+            } else if (firstEqual[bucket] < bucket && comparator.compare(block[i], pivots.get(bucket)) == 0) {
+                bucket = firstEqual[bucket] + i % (bucket - firstEqual[bucket]);
+            }
+            buckets[i] = bucket;
+        }
+        return belowFirstPivot;
+    }
+}
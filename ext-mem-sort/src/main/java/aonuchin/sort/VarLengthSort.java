@@ -0,0 +1,292 @@
+package aonuchin.sort;
+
+import aonuchin.Utils;
+import aonuchin.nio.VarLengthBuffersList;
+import aonuchin.nio.VarLengthChannelIterable;
+import aonuchin.nio.VarLengthChannelWriter;
+import aonuchin.nio.VarLengthSerializer;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * External sort of length prefixed variable length records, see {@link VarLengthSerializer}.
+ * Memory loads are sorted by swapping index entries of a {@link VarLengthBuffersList}. Distribution sort splits
+ * the input into buckets by pivots of its sorted first load, as {@link ExternalMemorySort.Pivots#FIRST_LOAD} does,
+ * and sorts buckets recursively. Merge sort writes loads as runs, which are merged with a {@link LoserTree}.
+ * The i/o buffer must fit the longest record.
+ */
+public class VarLengthSort<E> {
+    private final VarLengthSerializer<E> serializer;
+    private final List<ByteBuffer> buffersPool;
+    private final int bufferSize;
+    private final Path tmpDir;
+    private ExternalMemorySort.Strategy strategy = ExternalMemorySort.Strategy.DISTRIBUTION;
+    private int runsCreated = 0;
+    private int bucketsCreated = 0;
+
+    public VarLengthSort(VarLengthSerializer<E> serializer, List<ByteBuffer> buffersPool, int bufferSize, Path tmpDir) {
+        this.serializer = serializer;
+        this.buffersPool = buffersPool;
+        this.bufferSize = bufferSize;
+        this.tmpDir = tmpDir;
+    }
+
+    public VarLengthSort<E> withStrategy(ExternalMemorySort.Strategy strategy) {
+        this.strategy = strategy;
+        return this;
+    }
+
+    public void sort(Path inputPath, Path outputPath, Comparator<E> comparator) throws IOException {
+        Preconditions.checkArgument(Files.exists(inputPath) &&
+                Files.exists(tmpDir) &&
+                Files.isDirectory(tmpDir),
+                inputPath.toString() + " " + tmpDir.toString());
+        if (strategy == ExternalMemorySort.Strategy.MERGE) {
+            mergeSort(inputPath, outputPath, comparator);
+            return;
+        }
+        List<ByteBuffer> ioBuffers = Utils.sliceListBuffersPool(buffersPool, bufferSize, 2);
+        try (VarLengthChannelWriter<E> output = new VarLengthChannelWriter<>(serializer, ioBuffers.get(1),
+                Files.newByteChannel(outputPath, WRITE, CREATE, TRUNCATE_EXISTING))) {
+            distribute(inputPath, ioBuffers.get(0), output, comparator);
+        }
+    }
+
+    /**
+     * Number of buckets of distribution sort: their writers take half of memory at most,
+     * the rest but the input and output buffers holds the first load.
+     */
+    int fanOut() {
+        long buffers = Utils.capacityInBytes(buffersPool) / bufferSize / 2 - 2;
+        Preconditions.checkArgument(buffers >= 2, "Memory should fit at least 8 i/o buffers " + buffers);
+        return (int) Math.min(buffers, Integer.MAX_VALUE / 2);
+    }
+
+    /**
+     * Appends sorted input to the output. Input which does not fit memory is partitioned into buckets by pivots
+     * of the first load, the read buffer, bucket writers and the first load are reused by buckets one by one.
+     * A bucket which got the whole input, as when all elements are equal, is merge sorted.
+     */
+    private void distribute(Path inputPath, ByteBuffer readBuffer, VarLengthChannelWriter<E> output,
+                            Comparator<E> comparator) throws IOException {
+        int fanOut = fanOut();
+        List<ByteBuffer> writerBuffers = Utils.sliceListBuffersPool(buffersPool, bufferSize, fanOut + 2)
+                .subList(2, fanOut + 2);
+        VarLengthBuffersList<E> firstLoad = new VarLengthBuffersList<>(Utils.sliceListBuffersPoolTail(buffersPool,
+                Utils.sliceListBuffersPoolEnd(buffersPool, bufferSize, fanOut + 2)), serializer);
+        List<Path> buckets = new ArrayList<>(fanOut);
+        long[] bucketSizes = new long[fanOut];
+        long inputSize = 0;
+        try (VarLengthChannelIterable<E> input = new VarLengthChannelIterable<>(
+                Files.newByteChannel(inputPath, READ), readBuffer, serializer)) {
+            Iterator<E> elements = input.iterator();
+            E pending = null;
+            while (pending == null && elements.hasNext()) {
+                E element = elements.next();
+                if (!firstLoad.offer(element)) {
+                    pending = element;
+                }
+            }
+            Preconditions.checkArgument(pending == null || !firstLoad.isEmpty(), "Record does not fit memory");
+            InPlaceParallelSort.sort(firstLoad, comparator);
+            if (pending == null) {
+                firstLoad.writeTo(output);
+                return;
+            }
+            List<E> pivots = new ArrayList<>(fanOut);
+            for (int i = 0; i < fanOut; i++) {
+                pivots.add(firstLoad.get((int) ((long) i * firstLoad.size() / fanOut)));
+            }
+            SplitterTree<E> splitters = new SplitterTree<>(pivots, comparator);
+            List<VarLengthChannelWriter<E>> writers = new ArrayList<>(fanOut);
+            try {
+                for (int i = 0; i < fanOut; i++) {
+                    Path bucket = nextBucketPath();
+                    buckets.add(bucket);
+                    writers.add(new VarLengthChannelWriter<>(serializer, writerBuffers.get(i),
+                            Files.newByteChannel(bucket, WRITE, CREATE, TRUNCATE_EXISTING)));
+                }
+                inputSize = partition(splitters,
+                        Iterators.concat(firstLoad.iterator(), Iterators.singletonIterator(pending), elements),
+                        writers, bucketSizes);
+            } finally {
+                for (VarLengthChannelWriter<E> writer : writers) {
+                    writer.close();
+                }
+            }
+        }
+        try {
+            for (int i = 0; i < buckets.size(); i++) {
+                if (bucketSizes[i] == inputSize) {
+                    mergeSortInto(buckets.get(i), readBuffer, output, comparator);
+                } else if (bucketSizes[i] > 0) {
+                    distribute(buckets.get(i), readBuffer, output, comparator);
+                }
+                Files.delete(buckets.get(i));
+            }
+        } finally {
+            for (Path bucket : buckets) {
+                Files.deleteIfExists(bucket);
+            }
+        }
+    }
+
+    /**
+     * Writes every element to the writer of its bucket, a block at a time.
+     *
+     * @return number of elements
+     */
+    private long partition(SplitterTree<E> splitters, Iterator<E> elements, List<VarLengthChannelWriter<E>> writers,
+                           long[] bucketSizes) throws IOException {
+        @SuppressWarnings("unchecked")
+        E[] block = (E[]) new Object[SplitterTree.BLOCK_SIZE];
+        int[] blockBuckets = new int[SplitterTree.BLOCK_SIZE];
+        long size = 0;
+        while (elements.hasNext()) {
+            int count = 0;
+            while (count < block.length && elements.hasNext()) {
+                block[count++] = elements.next();
+            }
+            splitters.classify(block, count, blockBuckets);
+            for (int i = 0; i < count; i++) {
+                writers.get(blockBuckets[i]).writeElement(block[i]);
+                bucketSizes[blockBuckets[i]]++;
+            }
+            size += count;
+        }
+        return size;
+    }
+
+    /**
+     * Merge sorts the bucket in memory past the read and output buffers, then appends it to the output.
+     */
+    private void mergeSortInto(Path bucket, ByteBuffer readBuffer, VarLengthChannelWriter<E> output,
+                               Comparator<E> comparator) throws IOException {
+        Path sortedBucket = nextBucketPath();
+        try {
+            new VarLengthSort<>(serializer, Utils.sliceListBuffersPoolTail(buffersPool,
+                    Utils.sliceListBuffersPoolEnd(buffersPool, bufferSize, 2)), bufferSize, tmpDir)
+                    .withStrategy(ExternalMemorySort.Strategy.MERGE)
+                    .sort(bucket, sortedBucket, comparator);
+            try (VarLengthChannelIterable<E> sorted = new VarLengthChannelIterable<>(
+                    Files.newByteChannel(sortedBucket, READ), readBuffer, serializer)) {
+                for (E element : sorted) {
+                    output.writeElement(element);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(sortedBucket);
+        }
+    }
+
+    private void mergeSort(Path inputPath, Path outputPath, Comparator<E> comparator) throws IOException {
+        List<Path> runs = generateRuns(inputPath, comparator);
+        int fanIn = fanIn();
+        while (runs.size() > fanIn) {
+            List<Path> mergedRuns = new ArrayList<>();
+            for (int from = 0; from < runs.size(); from += fanIn) {
+                List<Path> group = runs.subList(from, Math.min(runs.size(), from + fanIn));
+                Path mergedRun = nextRunPath();
+                merge(group, mergedRun, comparator);
+                mergedRuns.add(mergedRun);
+            }
+            runs = mergedRuns;
+        }
+        if (runs.size() == 1) {
+            Files.move(runs.get(0), outputPath, REPLACE_EXISTING);
+        } else {
+            merge(runs, outputPath, comparator);
+        }
+    }
+
+    int fanIn() {
+        long buffers = Utils.capacityInBytes(buffersPool) / bufferSize - 2;
+        Preconditions.checkArgument(buffers >= 2, "Memory should fit at least 4 i/o buffers " + buffers);
+        return (int) Math.min(buffers, Integer.MAX_VALUE / 2);
+    }
+
+    List<Path> generateRuns(Path inputPath, Comparator<E> comparator) throws IOException {
+        List<ByteBuffer> ioBuffers = Utils.sliceListBuffersPool(buffersPool, bufferSize, 2);
+        VarLengthBuffersList<E> list = new VarLengthBuffersList<>(
+                Utils.sliceListBuffersPoolTail(buffersPool, Utils.sliceListBuffersPoolEnd(buffersPool, bufferSize, 2)),
+                serializer);
+        List<Path> runs = new ArrayList<>();
+        try (VarLengthChannelIterable<E> input = new VarLengthChannelIterable<>(
+                Files.newByteChannel(inputPath, READ), ioBuffers.get(0), serializer)) {
+            for (E element : input) {
+                if (!list.offer(element)) {
+                    runs.add(writeRun(list, ioBuffers.get(1), comparator));
+                    list.clear();
+                    Preconditions.checkArgument(list.offer(element), "Record does not fit memory");
+                }
+            }
+        }
+        if (!list.isEmpty() || runs.isEmpty()) {
+            runs.add(writeRun(list, ioBuffers.get(1), comparator));
+        }
+        return runs;
+    }
+
+    private Path writeRun(VarLengthBuffersList<E> list, ByteBuffer writeBuffer, Comparator<E> comparator)
+            throws IOException {
+        InPlaceParallelSort.sort(list, comparator);
+        Path run = nextRunPath();
+        try (VarLengthChannelWriter<E> writer = new VarLengthChannelWriter<>(serializer, writeBuffer,
+                Files.newByteChannel(run, WRITE, CREATE, TRUNCATE_EXISTING))) {
+            list.writeTo(writer);
+        }
+        return run;
+    }
+
+    void merge(List<Path> runs, Path outputPath, Comparator<E> comparator) throws IOException {
+        List<ByteBuffer> buffers = Utils.sliceListBuffersPool(buffersPool, bufferSize, runs.size() + 1);
+        List<VarLengthChannelIterable<E>> inputs = new ArrayList<>(runs.size());
+        try {
+            List<Iterator<E>> iterators = new ArrayList<>(runs.size());
+            for (int i = 0; i < runs.size(); i++) {
+                VarLengthChannelIterable<E> input = new VarLengthChannelIterable<>(
+                        Files.newByteChannel(runs.get(i), READ), buffers.get(i), serializer);
+                inputs.add(input);
+                iterators.add(input.iterator());
+            }
+            try (VarLengthChannelWriter<E> writer = new VarLengthChannelWriter<>(serializer, buffers.get(runs.size()),
+                    Files.newByteChannel(outputPath, WRITE, CREATE, TRUNCATE_EXISTING))) {
+                LoserTree<E> merged = new LoserTree<>(iterators, comparator);
+                while (merged.hasNext()) {
+                    writer.writeElement(merged.next());
+                }
+            }
+        } finally {
+            for (VarLengthChannelIterable<E> input : inputs) {
+                input.close();
+            }
+        }
+        for (Path run : runs) {
+            Files.delete(run);
+        }
+    }
+
+    private Path nextRunPath() {
+        return Paths.get(tmpDir.toString(), "var-length-run-file-" + runsCreated++);
+    }
+
+    private Path nextBucketPath() {
+        return Paths.get(tmpDir.toString(), "var-length-bucket-file-" + bucketsCreated++);
+    }
+}
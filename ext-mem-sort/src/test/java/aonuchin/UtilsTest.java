@@ -45,4 +45,21 @@ public class UtilsTest {
             assertEquals(25000, smallBuffer.capacity());
         }
     }
+
+    @Test
+    public void testSliceListBuffersPoolEnd() {
+        // leftovers at the end of the first buffer are skipped by small buffers
+        List<ByteBuffer> buffersPool = Arrays.asList(ByteBuffer.allocate(30), ByteBuffer.allocate(50));
+        List<ByteBuffer> smallBuffers = Utils.sliceListBuffersPool(buffersPool, 20, 3);
+        long end = Utils.sliceListBuffersPoolEnd(buffersPool, 20, 3);
+        assertEquals(70, end);
+        for (ByteBuffer smallBuffer : smallBuffers) {
+            smallBuffer.put(new byte[20]);
+        }
+        ByteBuffer tail = Utils.sliceListBuffersPoolTail(buffersPool, end).get(0);
+        assertEquals(10, tail.capacity());
+        tail.put(0, (byte) 1);
+        assertEquals(0, smallBuffers.get(2).get(19));
+        assertEquals(0, Utils.sliceListBuffersPoolEnd(buffersPool, 20, 0));
+    }
 }
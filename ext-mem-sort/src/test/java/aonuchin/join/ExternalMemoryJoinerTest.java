@@ -0,0 +1,184 @@
+package aonuchin.join;
+
+import aonuchin.Utils;
+import aonuchin.join.ExternalMemoryJoiner.Algorithm;
+import aonuchin.join.ExternalMemoryJoiner.Input;
+import aonuchin.join.ExternalMemoryJoiner.JoinType;
+import aonuchin.nio.ChannelIterable;
+import aonuchin.nio.ChannelWriter;
+import aonuchin.nio.LongBuffersList;
+import aonuchin.nio.LongSerializer;
+import aonuchin.sort.ExternalMemorySort;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.assertEquals;
+
+public class ExternalMemoryJoinerTest {
+    private static final int BUFFER_SIZE = 4000;
+    private static final int MEMORY_SIZE = 64000;
+    // a group holds 64 elements, groups of the test are twice as large
+    private static final int GROUP_MEMORY_SIZE = 512;
+    private static final long NO_MATCH = 999999;
+
+    // elements are joined by thousands
+    private static final Comparator<Long> BY_KEY = new Comparator<Long>() {
+        @Override
+        public int compare(Long o1, Long o2) {
+            return Long.compare(o1 / 1000, o2 / 1000);
+        }
+    };
+    private static final JoinKeyComparator<Long, Long> KEY_COMPARATOR = new JoinKeyComparator<Long, Long>() {
+        @Override
+        public int compare(Long left, Long right) {
+            return BY_KEY.compare(left, right);
+        }
+    };
+    private static final JoinKeyHasher<Long> KEY_HASHER = new JoinKeyHasher<Long>() {
+        @Override
+        public int hash(Long element) {
+            return (int) (element / 1000);
+        }
+    };
+
+    private Path tmpDir;
+    private Path left;
+    private Path right;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = Files.createTempDirectory("join-tmp");
+        left = Files.createTempFile("left", ".bin");
+        right = Files.createTempFile("right", ".bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(left);
+        Files.deleteIfExists(right);
+        Files.deleteIfExists(tmpDir);
+    }
+
+    @Test
+    public void testSortMergeJoin() throws Exception {
+        List<Long> leftElements = randomElements(5000, 0, 150000);
+        List<Long> rightElements = randomElements(20000, 50000, 200000);
+        for (boolean presorted : new boolean[]{false, true}) {
+            if (presorted) {
+                Collections.sort(leftElements, BY_KEY);
+                Collections.sort(rightElements, BY_KEY);
+            }
+            write(left, leftElements);
+            write(right, rightElements);
+            for (JoinType joinType : JoinType.values()) {
+                assertEquals(joinType + " " + presorted, expectedJoin(leftElements, rightElements, joinType),
+                        join(joinType, Algorithm.SORT_MERGE, presorted, GROUP_MEMORY_SIZE));
+            }
+        }
+    }
+
+    @Test
+    public void testGraceHashJoin() throws Exception {
+        List<Long> leftElements = randomElements(5000, 0, 150000);
+        List<Long> rightElements = randomElements(20000, 50000, 200000);
+        write(left, leftElements);
+        write(right, rightElements);
+        for (JoinType joinType : JoinType.values()) {
+            List<Long> expected = expectedJoin(leftElements, rightElements, joinType);
+            // partitioned once, then too little memory to partition, so that tables are loaded one by one
+            for (int memorySize : new int[]{MEMORY_SIZE, GROUP_MEMORY_SIZE}) {
+                assertEquals(joinType + " " + memorySize, expected,
+                        join(joinType, Algorithm.GRACE_HASH, false, memorySize));
+            }
+        }
+    }
+
+    private static List<Long> expectedJoin(List<Long> leftElements, List<Long> rightElements, JoinType joinType) {
+        List<Long> expected = new ArrayList<>();
+        for (long leftElement : leftElements) {
+            boolean matched = false;
+            for (long rightElement : rightElements) {
+                if (BY_KEY.compare(leftElement, rightElement) == 0) {
+                    if (!matched || joinType != JoinType.SEMI) {
+                        expected.add(pair(leftElement, rightElement, joinType));
+                    }
+                    matched = true;
+                }
+            }
+            if (!matched && joinType == JoinType.LEFT_OUTER) {
+                expected.add(pair(leftElement, null, joinType));
+            }
+        }
+        Collections.sort(expected);
+        return expected;
+    }
+
+    private List<Long> join(final JoinType joinType, Algorithm algorithm, boolean presorted, int memorySize)
+            throws Exception {
+        Input<Long> leftInput = new Input<>(left, newReader(), BY_KEY).withKeyHasher(KEY_HASHER);
+        Input<Long> rightInput = new Input<>(right, newReader(), BY_KEY).withKeyHasher(KEY_HASHER);
+        if (!presorted) {
+            leftInput.withSort(newSort());
+            rightInput.withSort(newSort());
+        }
+        final List<Long> actual = new ArrayList<>();
+        new ExternalMemoryJoiner<>(leftInput, rightInput, KEY_COMPARATOR,
+                new LongBuffersList(Utils.buildBuffersPool(memorySize)), tmpDir)
+                .withAlgorithm(algorithm)
+                .withJoinType(joinType)
+                .join(new JoinConsumer<Long, Long>() {
+                    @Override
+                    public void accept(Long left, Long right) {
+                        actual.add(pair(left, right, joinType));
+                    }
+                });
+        Collections.sort(actual);
+        return actual;
+    }
+
+    private static long pair(Long left, Long right, JoinType joinType) {
+        if (joinType == JoinType.SEMI) {
+            return left;
+        }
+        return left * 1000000 + (right == null ? NO_MATCH : right);
+    }
+
+    private static List<Long> randomElements(int count, long from, long to) {
+        List<Long> elements = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            elements.add(ThreadLocalRandom.current().nextLong(from, to));
+        }
+        return elements;
+    }
+
+    private ChannelIterable.Builder<Long> newReader() {
+        return new ChannelIterable.Builder<>(ByteBuffer.allocateDirect(BUFFER_SIZE), new LongSerializer());
+    }
+
+    private ExternalMemorySort<Long> newSort() {
+        return new ExternalMemorySort<>(newReader(), new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)),
+                MEMORY_SIZE / BUFFER_SIZE - 1, tmpDir);
+    }
+
+    private static void write(Path path, List<Long> elements) throws Exception {
+        try (ChannelWriter<Long> writer = new ChannelWriter<>(new LongSerializer(), ByteBuffer.allocateDirect(BUFFER_SIZE),
+                Files.newByteChannel(path, WRITE, CREATE, TRUNCATE_EXISTING))) {
+            for (long element : elements) {
+                writer.writeElement(element);
+            }
+        }
+    }
+}
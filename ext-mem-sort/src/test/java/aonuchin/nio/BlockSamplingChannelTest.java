@@ -0,0 +1,51 @@
+package aonuchin.nio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlockSamplingChannelTest {
+
+    @Test
+    public void testSampledBlocksAreDistinctAndOrdered() throws Exception {
+        int elements = 100000;
+        int blockElements = 50;
+        Path file = Files.createTempFile("sampled", ".bin");
+        try {
+            try (ChannelWriter<Long> writer = new ChannelWriter<>(new LongSerializer(), ByteBuffer.allocate(4096),
+                    Files.newByteChannel(file, StandardOpenOption.WRITE))) {
+                for (long i = 0; i < elements; i++) {
+                    writer.writeElement(i);
+                }
+            }
+            ByteBuffer sample = ByteBuffer.allocate(elements);
+            try (BlockSamplingChannel channel = new BlockSamplingChannel(FileChannel.open(file),
+                    sample.capacity() + 100, blockElements * 8)) {
+                while (channel.read(sample) >= 0 && sample.hasRemaining()) {
+                }
+                assertEquals(-1, channel.read(ByteBuffer.allocate(8)));
+            }
+            sample.flip();
+            assertEquals(elements / (blockElements * 8) * blockElements * 8, sample.remaining());
+            long previous = -1;
+            while (sample.hasRemaining()) {
+                long blockStart = sample.getLong();
+                assertEquals(0, blockStart % blockElements);
+                assertTrue(blockStart > previous);
+                for (int i = 1; i < blockElements; i++) {
+                    assertEquals(blockStart + i, sample.getLong());
+                }
+                previous = blockStart + blockElements - 1;
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
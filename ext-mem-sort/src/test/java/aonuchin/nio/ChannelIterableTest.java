@@ -5,6 +5,7 @@ import org.junit.Test;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.Pipe;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -12,6 +13,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -50,4 +52,110 @@ public class ChannelIterableTest {
              assertEquals(expected, actual);
          }
     }
+
+    @Test
+    public void testMappedFileIterating() throws Exception {
+        for (int i : TEST_DATA_SIZES) {
+            List<Long> expected = new ArrayList<>(i);
+            for (int j = 0; j < i; j++) {
+                expected.add(ThreadLocalRandom.current().nextLong());
+            }
+            Path tempFile = Files.createTempFile(null, null);
+            try (ChannelWriter<Long> writer = new ChannelWriter<>(new LongSerializer(), ByteBuffer.allocateDirect(1000),
+                    Files.newByteChannel(tempFile, EnumSet.of(StandardOpenOption.WRITE)))) {
+                for (long number : expected) {
+                    writer.writeElement(number);
+                }
+            }
+            List<Long> actual = new ArrayList<>(expected.size());
+            try (ChannelIterable<Long> numbersFromFile = new MappedFileIterable<>(
+                    new MappedReadChannel(tempFile, 8, 1001), new LongSerializer())) {
+                for (long number : numbersFromFile) {
+                    actual.add(number);
+                }
+            }
+            Files.delete(tempFile);
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testCompressedFileIterating() throws Exception {
+        for (BlockCodec codec : BlockCodec.values()) {
+            for (int i : TEST_DATA_SIZES) {
+                List<Long> expected = new ArrayList<>(i);
+                long value = Long.MIN_VALUE;
+                for (int j = 0; j < i; j++) {
+                    value += ThreadLocalRandom.current().nextInt(1000);
+                    expected.add(j % 3 == 0 ? ThreadLocalRandom.current().nextLong() : value);
+                }
+                Path tempFile = Files.createTempFile(null, null);
+                CompressedWriteChannel compressed = new CompressedWriteChannel(
+                        Files.newByteChannel(tempFile, EnumSet.of(StandardOpenOption.WRITE)), codec);
+                try (ChannelWriter<Long> writer = new ChannelWriter<>(new LongSerializer(), ByteBuffer.allocateDirect(1000),
+                        compressed)) {
+                    for (long number : expected) {
+                        writer.writeElement(number);
+                    }
+                }
+                assertEquals(i * 8L, compressed.rawBytesWritten());
+                List<Long> actual = new ArrayList<>(expected.size());
+                try (ChannelIterable<Long> numbersFromFile = new ChannelIterable<>(
+                        new CompressedReadChannel(Files.newByteChannel(tempFile)),
+                        ByteBuffer.allocateDirect(1024 * 1024),
+                        new LongSerializer())) {
+                    for (long number : numbersFromFile) {
+                        actual.add(number);
+                    }
+                }
+                Files.delete(tempFile);
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testNonBlockingChannelRejected() throws Exception {
+        Pipe pipe = Pipe.open();
+        try (Pipe.SourceChannel source = pipe.source(); Pipe.SinkChannel ignored = pipe.sink()) {
+            source.configureBlocking(false);
+            try {
+                new ChannelIterable<>(source, ByteBuffer.allocate(80), new LongSerializer());
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testMappedRegionsReleased() throws Exception {
+        Path tempFile = Files.createTempFile(null, null);
+        try (ChannelWriter<Long> writer = new ChannelWriter<>(new LongSerializer(), ByteBuffer.allocateDirect(1000),
+                Files.newByteChannel(tempFile, EnumSet.of(StandardOpenOption.WRITE)))) {
+            for (long number = 0; number < 1000; number++) {
+                writer.writeElement(number);
+            }
+        }
+        MappedReadChannel channel = new MappedReadChannel(tempFile, 8, 800);
+        ByteBuffer first = channel.nextRegion();
+        ByteBuffer second = channel.nextRegion();
+        // the first region is unmapped and emptied, the second one is current
+        assertFalse(first.hasRemaining());
+        assertEquals(800, second.remaining());
+        Iterator<Long> iterator;
+        try (ChannelIterable<Long> numbers = new MappedFileIterable<>(
+                new MappedReadChannel(tempFile, 8, 800), new LongSerializer())) {
+            iterator = numbers.iterator();
+            assertEquals(0L, (long) iterator.next());
+        }
+        channel.close();
+        assertFalse(second.hasRemaining());
+        // a closed channel fails instead of reading the unmapped region
+        try {
+            iterator.next();
+            fail();
+        } catch (RuntimeException expected) {
+        }
+        Files.delete(tempFile);
+    }
 }
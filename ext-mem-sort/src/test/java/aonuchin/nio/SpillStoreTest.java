@@ -0,0 +1,165 @@
+package aonuchin.nio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class SpillStoreTest {
+    private static final int EXTENT_SIZE = 64;
+
+    private Path firstDir;
+    private Path secondDir;
+
+    @Before
+    public void setUp() throws Exception {
+        firstDir = Files.createTempDirectory("spill-first");
+        secondDir = Files.createTempDirectory("spill-second");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(firstDir);
+        Files.deleteIfExists(secondDir);
+    }
+
+    @Test
+    public void testBucketsSpanExtents() throws Exception {
+        try (SpillStore store = new SpillStore(spillFile(firstDir), EXTENT_SIZE, 0)) {
+            // interleaved writes, so that extents of the buckets alternate in the file
+            SpillStore.Bucket first = store.newBucket();
+            SpillStore.Bucket second = store.newBucket();
+            try (WritableByteChannel firstWriter = first.writer();
+                 WritableByteChannel secondWriter = second.writer()) {
+                for (int i = 0; i < 10; i++) {
+                    firstWriter.write(ByteBuffer.wrap(bytes(100 * i, 50)));
+                    secondWriter.write(ByteBuffer.wrap(bytes(-100 * i, 30)));
+                }
+            }
+            assertEquals(500, first.size());
+            assertEquals(300, second.size());
+            assertArrayEquals(expectedBytes(100, 50, 10), read(first.reader(), 500));
+            assertArrayEquals(expectedBytes(-100, 30, 10), read(second.reader(), 300));
+            // runs of extents keep either bucket contiguous in the file
+            byte[] file = Files.readAllBytes(spillFile(firstDir));
+            assertArrayEquals(expectedBytes(100, 50, 10), Arrays.copyOfRange(file, 0, 500));
+            int secondRun = SpillStore.EXTENT_RUN * EXTENT_SIZE;
+            assertArrayEquals(expectedBytes(-100, 30, 10), Arrays.copyOfRange(file, secondRun, secondRun + 300));
+        }
+    }
+
+    @Test
+    public void testReaderSeeksAcrossExtents() throws Exception {
+        try (SpillStore store = new SpillStore(spillFile(firstDir), EXTENT_SIZE, 0)) {
+            SpillStore.Bucket bucket = store.newBucket();
+            byte[] written = bytes(0, 5 * EXTENT_SIZE + 10);
+            try (WritableByteChannel writer = bucket.writer()) {
+                writer.write(ByteBuffer.wrap(written));
+            }
+            // positions inside an extent, at its start, and the end of the bucket
+            for (int position : new int[]{EXTENT_SIZE - 3, 2 * EXTENT_SIZE, written.length}) {
+                SeekableByteChannel reader = bucket.reader().position(position);
+                assertEquals(position, reader.position());
+                assertArrayEquals(Arrays.copyOfRange(written, position, written.length),
+                        read(reader, written.length - position));
+                assertEquals(-1, reader.read(ByteBuffer.allocate(1)));
+            }
+        }
+    }
+
+    @Test
+    public void testFreedExtentsAreReused() throws Exception {
+        try (SpillStore store = new SpillStore(spillFile(firstDir), EXTENT_SIZE, 0)) {
+            SpillStore.Bucket freed = store.newBucket();
+            try (WritableByteChannel writer = freed.writer()) {
+                writer.write(ByteBuffer.wrap(bytes(0, 3 * EXTENT_SIZE)));
+            }
+            freed.free();
+            assertEquals(0, freed.size());
+
+            SpillStore.Bucket reused = store.newBucket();
+            byte[] written = bytes(7, 3 * EXTENT_SIZE);
+            try (WritableByteChannel writer = reused.writer()) {
+                writer.write(ByteBuffer.wrap(written));
+            }
+            assertEquals(3 * EXTENT_SIZE, Files.size(spillFile(firstDir)));
+            assertArrayEquals(written, read(reused.reader(), written.length));
+        }
+    }
+
+    @Test
+    public void testSizeHintExtendsFiles() throws Exception {
+        try (SpillStore store = new SpillStore(Arrays.asList(spillFile(firstDir), spillFile(secondDir)), EXTENT_SIZE,
+                1000, SpillStore.Placement.ROUND_ROBIN)) {
+            assertEquals(500, Files.size(spillFile(firstDir)));
+            assertEquals(500, Files.size(spillFile(secondDir)));
+        }
+        assertFalse(Files.exists(spillFile(firstDir)));
+        assertFalse(Files.exists(spillFile(secondDir)));
+    }
+
+    @Test
+    public void testFreeSpacePlacementSpreadsEmptyBuckets() throws Exception {
+        try (SpillStore store = new SpillStore(Arrays.asList(spillFile(firstDir), spillFile(secondDir)), EXTENT_SIZE, 0,
+                SpillStore.Placement.FREE_SPACE)) {
+            // buckets of a pass are created before any of them is written
+            int[] buckets = new int[2];
+            for (int i = 0; i < 10; i++) {
+                buckets[store.newBucket().stripe()]++;
+            }
+            assertEquals(5, buckets[0]);
+            assertEquals(5, buckets[1]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateSpillFilesAreRejected() throws Exception {
+        new SpillStore(Arrays.asList(spillFile(firstDir), Paths.get(firstDir.toString(), ".", "spill-store")),
+                EXTENT_SIZE, 0, SpillStore.Placement.ROUND_ROBIN);
+    }
+
+    private static byte[] bytes(int from, int count) {
+        byte[] bytes = new byte[count];
+        for (int i = 0; i < count; i++) {
+            bytes[i] = (byte) (from + i);
+        }
+        return bytes;
+    }
+
+    private static byte[] expectedBytes(int step, int count, int writes) {
+        byte[] bytes = new byte[count * writes];
+        for (int i = 0; i < writes; i++) {
+            System.arraycopy(bytes(step * i, count), 0, bytes, i * count, count);
+        }
+        return bytes;
+    }
+
+    private static byte[] read(ReadableByteChannel reader, int count) throws Exception {
+        // small buffer, so that reads stop at extent boundaries and in between
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        ByteBuffer chunk = ByteBuffer.allocate(EXTENT_SIZE / 3);
+        while (reader.read(chunk) >= 0) {
+            chunk.flip();
+            buffer.put(chunk);
+            chunk.clear();
+        }
+        assertEquals(count, buffer.position());
+        return buffer.array();
+    }
+
+    private static Path spillFile(Path dir) {
+        return Paths.get(dir.toString(), "spill-store");
+    }
+}
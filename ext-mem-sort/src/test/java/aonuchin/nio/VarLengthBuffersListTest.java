@@ -0,0 +1,79 @@
+package aonuchin.nio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VarLengthBuffersListTest {
+
+    @Test
+    public void testPackingAndSwapping() throws Exception {
+        VarLengthBuffersList<String> list = new VarLengthBuffersList<>(
+                Arrays.asList(ByteBuffer.allocateDirect(24), ByteBuffer.allocateDirect(40)), new StringSerializer());
+        assertTrue(list.offer("first record"));
+        // does not fit the rest of the first buffer
+        assertTrue(list.offer("second"));
+        assertTrue(list.offer(""));
+        assertFalse(list.offer("does not fit at all"));
+        // records would overlap the index
+        assertFalse(list.offer("full"));
+        list.swap(0, 1);
+        assertEquals(Arrays.asList("second", "first record", ""), list);
+        list.clear();
+        assertTrue(list.offer("full"));
+    }
+
+    @Test
+    public void testIndexMeetsRecords() throws Exception {
+        VarLengthBuffersList<String> list = new VarLengthBuffersList<>(
+                Arrays.asList(ByteBuffer.allocateDirect(64)), new StringSerializer());
+        // a record of one char and its index entry take 13 bytes
+        for (String element : Arrays.asList("a", "b", "c", "d")) {
+            assertTrue(list.offer(element));
+        }
+        assertFalse(list.offer("e"));
+        list.swap(0, 3);
+        assertEquals(Arrays.asList("d", "b", "c", "a"), list);
+    }
+
+    @Test
+    public void testRecordsSpanningBlocks() throws Exception {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder record = new StringBuilder();
+            int length = ThreadLocalRandom.current().nextInt(30);
+            for (int j = 0; j < length; j++) {
+                record.append((char) ('a' + ThreadLocalRandom.current().nextInt(26)));
+            }
+            expected.add(record.toString());
+        }
+        Path file = Files.createTempFile("records", ".bin");
+        StringSerializer serializer = new StringSerializer();
+        try (VarLengthChannelWriter<String> writer = new VarLengthChannelWriter<>(
+                serializer, ByteBuffer.allocate(37), Files.newByteChannel(file, StandardOpenOption.WRITE))) {
+            for (String record : expected) {
+                writer.writeElement(record);
+            }
+        }
+        List<String> actual = new ArrayList<>();
+        try (VarLengthChannelIterable<String> input = new VarLengthChannelIterable<>(
+                Files.newByteChannel(file), ByteBuffer.allocate(41), serializer)) {
+            for (String record : input) {
+                actual.add(record);
+            }
+        }
+        Files.delete(file);
+        assertEquals(expected, actual);
+    }
+}
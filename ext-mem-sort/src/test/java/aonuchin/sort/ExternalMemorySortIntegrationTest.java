@@ -1,23 +1,132 @@
 package aonuchin.sort;
 
+import aonuchin.Utils;
 import aonuchin.example.ExternalMemorySortLauncher;
+import aonuchin.nio.ChannelIterable;
+import aonuchin.nio.LongBuffersList;
+import aonuchin.nio.LongSerializer;
+import aonuchin.nio.SpillStore;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ObjectArrays;
+import com.google.common.collect.Ordering;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
 import java.io.BufferedReader;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import static org.junit.Assert.*;
 
 public class ExternalMemorySortIntegrationTest {
+    // inputs, outputs and temporary directories of the launcher, nothing is written to the working directory
+    private Path dir;
+    private String input;
+    private String output;
+    private String tmpDir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("sort-it");
+        input = dir.resolve("input.txt").toString();
+        output = dir.resolve("output.txt").toString();
+        tmpDir = dir.resolve("sort-tmp").toString();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir.toFile());
+    }
 
     @Test
     public void testSort() throws Exception {
-        ExternalMemorySortLauncher.main("-dt", "5000000", "-o", "input.txt");
-        ExternalMemorySortLauncher.main("-ts", "-i", "input.txt", "-o", "output.txt", "-m", "2500000", "-b", "25000");
+        generate(5000000);
+        sort("-m", "2500000", "-b", "25000");
+        checkSortedOutput(5000000L);
+    }
+
+    @Test
+    public void testMergeSort() throws Exception {
+        generate(5000000);
+        sort("-m", "2500000", "-b", "25000", "-s", "merge");
+        checkSortedOutput(5000000L);
+    }
+
+    @Test
+    public void testMultiPassMergeSort() throws Exception {
+        generate(1000000);
+        sort("-m", "200000", "-b", "25000", "-s", "merge");
+        checkSortedOutput(1000000L);
+    }
+
+    @Test
+    public void testConcurrentBucketsSort() throws Exception {
+        generate(5000000);
+        sort("-m", "2500000", "-b", "25000", "-c", "40", "-w", "4");
+        checkSortedOutput(5000000L);
+    }
+
+    @Test
+    public void testPipelinedPartitioningSort() throws Exception {
+        generate(5000000);
+        sort("-m", "2500000", "-b", "25000", "-pt", "2");
+        checkSortedOutput(5000000L);
+    }
+
+    @Test
+    public void testMappedIoSort() throws Exception {
+        generate(5000000);
+        sort("-m", "2500000", "-b", "25000", "-io", "mmap");
+        checkSortedOutput(5000000L);
+    }
+
+    @Test
+    public void testStripedTmpDirsSort() throws Exception {
+        String first = dir.resolve("first").toString();
+        String second = dir.resolve("second").toString();
+        generate(5000000);
+        sort("-m", "2500000", "-b", "25000", "-t", first + "," + second, "-tp", "free_space");
+        checkSortedOutput(5000000L);
+        // buckets of a pass are created before any is written, still they are spread over both directories
+        ExternalMemorySort<Long> sort = new ExternalMemorySort<>(
+                new ChannelIterable.Builder<>(ByteBuffer.allocateDirect(25000), new LongSerializer()),
+                new LongBuffersList(Utils.buildBuffersPool(2500000)), 99,
+                Arrays.asList(Paths.get(first), Paths.get(second)))
+                .withPlacement(SpillStore.Placement.FREE_SPACE);
+        sort.sort(Paths.get(input + ".bin"), Paths.get(output + ".bin"), Ordering.<Long>natural());
+        Set<Integer> stripes = new HashSet<>();
+        for (BucketStatistics bucket : sort.getBucketStatistics()) {
+            stripes.add(bucket.getStripe());
+        }
+        assertEquals(new HashSet<>(Arrays.asList(0, 1)), stripes);
+        sort("-m", "2500000", "-b", "25000", "-t", first + "," + second, "-s", "merge");
+        checkSortedOutput(5000000L);
+    }
+
+    private void generate(long count) throws Exception {
+        ExternalMemorySortLauncher.main("-dt", String.valueOf(count), "-o", input);
+    }
+
+    /**
+     * Sorts text input through binary files, the temporary directory of the test is used unless options give one.
+     */
+    private void sort(String... options) throws Exception {
+        String[] arguments = ObjectArrays.concat(new String[]{"-ts", "-i", input, "-o", output}, options, String.class);
+        if (!Arrays.asList(options).contains("-t")) {
+            arguments = ObjectArrays.concat(arguments, new String[]{"-t", tmpDir}, String.class);
+        }
+        ExternalMemorySortLauncher.main(arguments);
+    }
 
+    private void checkSortedOutput(long expectedLinesNum) throws Exception {
         long linesNum = 0;
-        try (BufferedReader reader = Files.newBufferedReader(Paths.get("output.txt"), Charsets.US_ASCII)) {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(output), Charsets.US_ASCII)) {
             String line;
             long prev = Long.MIN_VALUE;
             while ((line = reader.readLine()) != null) {
@@ -26,6 +135,6 @@ public class ExternalMemorySortIntegrationTest {
                 linesNum++;
             }
         }
-        assertEquals(5000000L, linesNum);
+        assertEquals(expectedLinesNum, linesNum);
     }
 }
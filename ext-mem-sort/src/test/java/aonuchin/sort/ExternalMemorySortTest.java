@@ -0,0 +1,458 @@
+package aonuchin.sort;
+
+import aonuchin.Utils;
+import aonuchin.nio.ByteBuffersList;
+import aonuchin.nio.ChannelIterable;
+import aonuchin.nio.ChannelWriter;
+import aonuchin.nio.LongBuffersList;
+import aonuchin.nio.LongSerializer;
+import aonuchin.sort.ExternalMemorySort.Pivots;
+import com.google.common.collect.Ordering;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExternalMemorySortTest {
+    private static final int BUFFER_SIZE = 4000;
+    private static final int MEMORY_SIZE = 64000;
+
+    private Path tmpDir;
+    private Path input;
+    private Path output;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = Files.createTempDirectory("sort-tmp");
+        input = Files.createTempFile("input", ".bin");
+        output = Files.createTempFile("output", ".bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(output);
+        Files.deleteIfExists(tmpDir);
+    }
+
+    @Test
+    public void testRandomLongsSort() throws Exception {
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            expected.add(ThreadLocalRandom.current().nextLong());
+        }
+        checkSort(expected);
+    }
+
+    @Test
+    public void testFewDistinctLongsSort() throws Exception {
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            expected.add(ThreadLocalRandom.current().nextLong(3));
+        }
+        checkSort(expected);
+    }
+
+    @Test
+    public void testZipfianLongsSortInOnePass() throws Exception {
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            // P(k) ~ 1 / k^2
+            expected.add((long) (1 / Math.sqrt(ThreadLocalRandom.current().nextDouble(1e-12, 1))));
+        }
+        List<BucketStatistics> statistics = checkSort(expected, new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)),
+                Ordering.<Long>natural(), false, false, Pivots.SAMPLE);
+        int heavyHitters = 0;
+        for (BucketStatistics bucket : statistics) {
+            assertEquals(bucket.toString(), 0, bucket.getDepth());
+            if (bucket.isHeavyHitter()) {
+                heavyHitters++;
+            }
+        }
+        assertTrue(heavyHitters > 0);
+    }
+
+    @Test
+    public void testQuantilePivotsSortInOnePass() throws Exception {
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            expected.add(ThreadLocalRandom.current().nextLong());
+        }
+        List<BucketStatistics> statistics = checkSort(expected, new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)),
+                Ordering.<Long>natural(), false, false, Pivots.QUANTILES);
+        assertTrue(statistics.size() > 0);
+        for (BucketStatistics bucket : statistics) {
+            assertEquals(bucket.toString(), 0, bucket.getDepth());
+        }
+    }
+
+    @Test
+    public void testSelectAndSortPrefix() throws Exception {
+        for (long bound : new long[]{Long.MAX_VALUE, 3}) {
+            List<Long> expected = new ArrayList<>();
+            for (int i = 0; i < 100000; i++) {
+                expected.add(ThreadLocalRandom.current().nextLong(bound));
+            }
+            List<Long> sortedExpected = new ArrayList<>(expected);
+            Collections.sort(sortedExpected);
+            writeInput(expected);
+            ChannelIterable.Builder<Long> channelIterator = new ChannelIterable.Builder<>(
+                    ByteBuffer.allocateDirect(BUFFER_SIZE), new LongSerializer());
+            ExternalMemorySort<Long> sort = new ExternalMemorySort<>(channelIterator,
+                    new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)), MEMORY_SIZE / BUFFER_SIZE - 1, tmpDir);
+            for (int rank : new int[]{0, 12345, 50000, 99999}) {
+                assertEquals(sortedExpected.get(rank), sort.select(input, rank, Ordering.<Long>natural()));
+            }
+            for (int count : new int[]{0, 1000, 50000, 200000}) {
+                Files.delete(output);
+                sort.sortPrefix(input, output, count, Ordering.<Long>natural());
+                assertEquals(sortedExpected.subList(0, Math.min(count, expected.size())), readOutput(channelIterator));
+            }
+        }
+    }
+
+    @Test
+    public void testIterateSorted() throws Exception {
+        for (long bound : new long[]{Long.MAX_VALUE, 3}) {
+            List<Long> expected = new ArrayList<>();
+            for (int i = 0; i < 100000; i++) {
+                expected.add(ThreadLocalRandom.current().nextLong(bound));
+            }
+            writeInput(expected);
+            ChannelIterable.Builder<Long> channelIterator = new ChannelIterable.Builder<>(
+                    ByteBuffer.allocateDirect(BUFFER_SIZE), new LongSerializer());
+            // two buckets per pass do not fit memory, so that they are partitioned again while iterating
+            ExternalMemorySort<Long> sort = new ExternalMemorySort<>(channelIterator,
+                    new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)), 2, tmpDir);
+            List<Long> actual = new ArrayList<>();
+            try (SortedElements<Long> sorted = sort.iterateSorted(input, Ordering.<Long>natural())) {
+                for (Long element : sorted) {
+                    actual.add(element);
+                }
+            }
+            Collections.sort(expected);
+            assertEquals(expected, actual);
+
+            // stopped in the middle of a bucket, which is closed along with the spill store
+            try (SortedElements<Long> sorted = sort.iterateSorted(input, Ordering.<Long>natural())) {
+                Iterator<Long> elements = sorted.iterator();
+                for (int i = 0; i < expected.size() / 2; i++) {
+                    assertEquals(expected.get(i), elements.next());
+                }
+            }
+            try (DirectoryStream<Path> spillFiles = Files.newDirectoryStream(tmpDir)) {
+                assertFalse(spillFiles.iterator().hasNext());
+            }
+        }
+    }
+
+    @Test
+    public void testDistinctAndCombine() throws Exception {
+        for (long bound : new long[]{3, 1000, 1000000}) {
+            List<Long> elements = new ArrayList<>();
+            for (int i = 0; i < 100000; i++) {
+                elements.add(ThreadLocalRandom.current().nextLong(bound));
+            }
+            writeInput(elements);
+            ChannelIterable.Builder<Long> channelIterator = new ChannelIterable.Builder<>(
+                    ByteBuffer.allocateDirect(BUFFER_SIZE), new LongSerializer());
+
+            Files.delete(output);
+            new ExternalMemorySort<>(channelIterator, new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)),
+                    MEMORY_SIZE / BUFFER_SIZE - 1, tmpDir)
+                    .withDistinct()
+                    .sort(input, output, Ordering.<Long>natural());
+            assertEquals(new ArrayList<>(new TreeSet<>(elements)), readOutput(channelIterator));
+
+            // elements are equal by thousands, the greatest of equal ones is kept
+            Comparator<Long> byThousands = new Comparator<Long>() {
+                @Override
+                public int compare(Long o1, Long o2) {
+                    return Long.compare(o1 / 1000, o2 / 1000);
+                }
+            };
+            TreeMap<Long, Long> maxByThousands = new TreeMap<>();
+            for (long element : elements) {
+                Long max = maxByThousands.get(element / 1000);
+                maxByThousands.put(element / 1000, max == null ? element : Math.max(max, element));
+            }
+            Files.delete(output);
+            new ExternalMemorySort<>(channelIterator, new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)),
+                    MEMORY_SIZE / BUFFER_SIZE - 1, tmpDir)
+                    .withCombiner(new Combiner<Long>() {
+                        @Override
+                        public Long combine(Long left, Long right) {
+                            return Math.max(left, right);
+                        }
+                    })
+                    .sort(input, output, byThousands);
+            assertEquals(new ArrayList<>(maxByThousands.values()), readOutput(channelIterator));
+        }
+    }
+
+    @Test
+    public void testMergeInto() throws Exception {
+        ChannelIterable.Builder<Long> channelIterator = new ChannelIterable.Builder<>(
+                ByteBuffer.allocateDirect(BUFFER_SIZE), new LongSerializer());
+        ExternalMemorySort<Long> sort = new ExternalMemorySort<>(channelIterator,
+                new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)), MEMORY_SIZE / BUFFER_SIZE - 1, tmpDir);
+        List<Long> expected = new ArrayList<>();
+        Files.delete(output);
+        Files.createFile(output);
+        // deltas overlapping the whole file, a few keys, the tail of the file only, nothing
+        for (long[] range : new long[][]{{0, 1000000}, {0, 1000000}, {500, 503}, {900000, 2000000}, {0, 0}}) {
+            List<Long> delta = new ArrayList<>();
+            for (int i = 0; range[1] > range[0] && i < 30000; i++) {
+                delta.add(ThreadLocalRandom.current().nextLong(range[0], range[1]));
+            }
+            writeInput(delta);
+            sort.mergeInto(output, input, output, Ordering.<Long>natural());
+            expected.addAll(delta);
+            Collections.sort(expected);
+            assertEquals(expected, readOutput(channelIterator));
+        }
+
+        Path merged = Files.createTempFile("merged", ".bin");
+        try {
+            Files.move(output, merged, StandardCopyOption.REPLACE_EXISTING);
+            List<Long> delta = new ArrayList<>();
+            for (int i = 0; i < 30000; i++) {
+                delta.add(ThreadLocalRandom.current().nextLong(1000000));
+            }
+            writeInput(delta);
+            sort.mergeInto(merged, input, output, Ordering.<Long>natural());
+            expected.addAll(delta);
+            Collections.sort(expected);
+            assertEquals(expected, readOutput(channelIterator));
+        } finally {
+            Files.delete(merged);
+        }
+    }
+
+    @Test
+    public void testFailedMergeIntoKeepsOutput() throws Exception {
+        ChannelIterable.Builder<Long> channelIterator = new ChannelIterable.Builder<>(
+                ByteBuffer.allocateDirect(BUFFER_SIZE), new LongSerializer());
+        ExternalMemorySort<Long> sort = new ExternalMemorySort<>(channelIterator,
+                new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)), MEMORY_SIZE / BUFFER_SIZE - 1, tmpDir);
+        // sorted elements are even, delta elements are odd and start in the middle of them
+        List<Long> expected = new ArrayList<>();
+        List<Long> delta = new ArrayList<>();
+        for (long i = 0; i < 30000; i++) {
+            expected.add(2 * i);
+            delta.add(30000 + 2 * i + 1);
+        }
+        writeInput(expected);
+        Files.move(input, output, StandardCopyOption.REPLACE_EXISTING);
+        writeInput(delta);
+        // fails once the merge has written past the copied prefix
+        Comparator<Long> failing = new Comparator<Long>() {
+            @Override
+            public int compare(Long o1, Long o2) {
+                if (o1 % 2 != o2 % 2 && Math.max(o1, o2) % 2 == 0 && Math.max(o1, o2) > 50000) {
+                    throw new IllegalStateException("Merge failure");
+                }
+                return Long.compare(o1, o2);
+            }
+        };
+        try {
+            sort.mergeInto(output, input, output, failing);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Merge failure", e.getMessage());
+        }
+        assertEquals(expected, readOutput(channelIterator));
+        try (DirectoryStream<Path> merged = Files.newDirectoryStream(output.toAbsolutePath().getParent(),
+                output.getFileName() + ".merge-*")) {
+            assertFalse(merged.iterator().hasNext());
+        }
+    }
+
+    @Test
+    public void testChannelSort() throws Exception {
+        ChannelIterable.Builder<Long> channelIterator = new ChannelIterable.Builder<>(
+                ByteBuffer.allocateDirect(BUFFER_SIZE), new LongSerializer());
+        ExternalMemorySort<Long> sort = new ExternalMemorySort<>(channelIterator,
+                new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)), MEMORY_SIZE / BUFFER_SIZE - 1, tmpDir);
+        // partitioned, fitting the first load, empty
+        for (int count : new int[]{100000, 1000, 0}) {
+            List<Long> expected = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                expected.add(ThreadLocalRandom.current().nextLong(1000000));
+            }
+            writeInput(expected);
+            // a stream of unknown size rather than a file
+            sort.sort(Channels.newChannel(Files.newInputStream(input)), output, Ordering.<Long>natural());
+            Collections.sort(expected);
+            assertEquals(expected, readOutput(channelIterator));
+        }
+    }
+
+    @Test
+    public void testSortedChannelSort() throws Exception {
+        ChannelIterable.Builder<Long> channelIterator = new ChannelIterable.Builder<>(
+                ByteBuffer.allocateDirect(BUFFER_SIZE), new LongSerializer());
+        ExternalMemorySort<Long> sort = new ExternalMemorySort<>(channelIterator,
+                new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)), MEMORY_SIZE / BUFFER_SIZE - 1, tmpDir);
+        // the first load holds the least elements only, everything else lands in the last bucket
+        List<Long> expected = new ArrayList<>();
+        for (long i = 0; i < 100000; i++) {
+            expected.add(i);
+        }
+        writeInput(expected);
+        sort.sort(Channels.newChannel(Files.newInputStream(input)), output, Ordering.<Long>natural());
+        assertEquals(expected, readOutput(channelIterator));
+        // buckets below the first level are sampled, so that a level is not spent per memory load
+        for (BucketStatistics bucket : sort.getBucketStatistics()) {
+            assertTrue(bucket.toString(), bucket.getDepth() <= 2);
+        }
+    }
+
+    @Test
+    public void testInterruptedConcurrentSortFails() throws Exception {
+        List<Long> elements = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            elements.add(ThreadLocalRandom.current().nextLong());
+        }
+        writeInput(elements);
+        final Thread caller = Thread.currentThread();
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        // the caller is interrupted by a sort worker while it waits for the workers
+        Comparator<Long> comparator = new Comparator<Long>() {
+            @Override
+            public int compare(Long o1, Long o2) {
+                if (Thread.currentThread().getName().startsWith("pool-") && interrupted.compareAndSet(false, true)) {
+                    caller.interrupt();
+                }
+                return Long.compare(o1, o2);
+            }
+        };
+        ExternalMemorySort<Long> sort = new ExternalMemorySort<>(
+                new ChannelIterable.Builder<>(ByteBuffer.allocateDirect(BUFFER_SIZE), new LongSerializer()),
+                new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)), MEMORY_SIZE / BUFFER_SIZE - 1, tmpDir)
+                .withSortThreads(2);
+        try {
+            sort.sort(input, output, comparator);
+            fail("Interrupted sort completed");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+            assertTrue(Thread.interrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void testEmptySort() throws Exception {
+        checkSort(new ArrayList<Long>());
+    }
+
+    private void checkSort(List<Long> expected) throws Exception {
+        checkSort(expected, new ByteBuffersList<>(Utils.buildBuffersPool(MEMORY_SIZE), new LongSerializer()),
+                Ordering.<Long>natural(), false, false, Pivots.SAMPLE);
+        checkSort(expected, new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)), Ordering.<Long>natural(),
+                false, false, Pivots.SAMPLE);
+        checkSort(expected, new ByteBuffersList<>(Utils.buildBuffersPool(MEMORY_SIZE), new LongSerializer()),
+                LongSerializer.NATURAL_ORDER, false, false, Pivots.SAMPLE);
+        checkSort(expected, new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)), Ordering.<Long>natural(),
+                true, false, Pivots.SAMPLE);
+        checkSort(expected, new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)), Ordering.<Long>natural(),
+                false, true, Pivots.SAMPLE);
+        checkSort(expected, new ByteBuffersList<>(Utils.buildBuffersPool(MEMORY_SIZE), new LongSerializer()),
+                Ordering.<Long>natural(), false, false, Pivots.QUANTILES);
+        checkSort(expected, new ByteBuffersList<>(Utils.buildBuffersPool(MEMORY_SIZE), new LongSerializer()),
+                Ordering.<Long>natural(), false, false, Pivots.FIRST_LOAD);
+        checkSort(expected, new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)), Ordering.<Long>natural(),
+                false, true, Pivots.FIRST_LOAD);
+        checkSort(expected, new LongBuffersList(fragmentedBuffersPool()), Ordering.<Long>natural(),
+                false, false, Pivots.FIRST_LOAD);
+        checkSort(expected, new ByteBuffersList<>(Utils.buildBuffersPool(MEMORY_SIZE), new LongSerializer()),
+                Ordering.<Long>natural(), false, false, Pivots.SAMPLE, 3, 0);
+        checkSort(expected, new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)), Ordering.<Long>natural(),
+                true, false, Pivots.SAMPLE, 2, 0);
+        checkSort(expected, new ByteBuffersList<>(Utils.buildBuffersPool(MEMORY_SIZE), new LongSerializer()),
+                Ordering.<Long>natural(), false, false, Pivots.SAMPLE, 1, 2);
+        checkSort(expected, new LongBuffersList(Utils.buildBuffersPool(MEMORY_SIZE)), Ordering.<Long>natural(),
+                false, false, Pivots.QUANTILES, 2, 3);
+    }
+
+    private List<BucketStatistics> checkSort(List<Long> expected, ByteBuffersList<Long> list, Comparator<Long> comparator,
+                                             boolean compressSpills, boolean residentBuckets, Pivots pivots) throws Exception {
+        return checkSort(expected, list, comparator, compressSpills, residentBuckets, pivots, 1, 0);
+    }
+
+    private List<BucketStatistics> checkSort(List<Long> expected, ByteBuffersList<Long> list, Comparator<Long> comparator,
+                                             boolean compressSpills, boolean residentBuckets, Pivots pivots,
+                                             int sortThreads, int partitionThreads) throws Exception {
+        writeInput(expected);
+        ChannelIterable.Builder<Long> channelIterator = new ChannelIterable.Builder<>(
+                ByteBuffer.allocateDirect(BUFFER_SIZE), new LongSerializer());
+        Files.delete(output);
+        ExternalMemorySort<Long> sort = new ExternalMemorySort<>(channelIterator, list, MEMORY_SIZE / BUFFER_SIZE - 1, tmpDir)
+                .withCompressedSpills(compressSpills)
+                .withResidentBuckets(residentBuckets)
+                .withPivots(pivots)
+                .withSortThreads(sortThreads)
+                .withPartitionThreads(partitionThreads);
+        sort.sort(input, output, comparator);
+
+        List<Long> sortedExpected = new ArrayList<>(expected);
+        Collections.sort(sortedExpected);
+        assertEquals(sortedExpected, readOutput(channelIterator));
+        return sort.getBucketStatistics();
+    }
+
+    /**
+     * Pool of buffers which leave leftovers after slicing i/o buffers out of them.
+     */
+    private static List<ByteBuffer> fragmentedBuffersPool() {
+        List<ByteBuffer> pool = new ArrayList<>();
+        for (int i = 0; i < MEMORY_SIZE / (BUFFER_SIZE * 3 / 2); i++) {
+            pool.add(ByteBuffer.allocateDirect(BUFFER_SIZE * 3 / 2));
+        }
+        return pool;
+    }
+
+    private void writeInput(List<Long> elements) throws Exception {
+        try (ChannelWriter<Long> writer = new ChannelWriter<>(new LongSerializer(), ByteBuffer.allocateDirect(BUFFER_SIZE),
+                Files.newByteChannel(input, WRITE, CREATE, TRUNCATE_EXISTING))) {
+            for (long element : elements) {
+                writer.writeElement(element);
+            }
+        }
+    }
+
+    private List<Long> readOutput(ChannelIterable.Builder<Long> channelIterator) throws Exception {
+        List<Long> actual = new ArrayList<>();
+        try (ChannelIterable<Long> sorted = channelIterator.iterateOverFile(output)) {
+            for (long element : sorted) {
+                actual.add(element);
+            }
+        }
+        return actual;
+    }
+}
@@ -1,7 +1,15 @@
 package aonuchin.sort;
 
+import aonuchin.Utils;
+import aonuchin.nio.ByteBuffersList;
+import aonuchin.nio.LongBuffersList;
+import aonuchin.nio.LongSerializer;
+import aonuchin.nio.NormalizedKeySerializer;
 import com.google.common.collect.Ordering;
 import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -79,11 +87,78 @@ public class InPlaceSortTest {
         checkSort(expected);
     }
 
+    @Test
+    public void testWideRecordsPointerSort() throws Exception {
+        for (int size : TEST_DATA_SIZES) {
+            List<String> records = new ArrayList<>();
+            for (int i = 0; i < Math.min(size, 1000000); i++) {
+                // common prefix makes key prefixes tie often
+                records.add("record-" + ThreadLocalRandom.current().nextInt(size));
+            }
+            ByteBuffersList<String> list = new ByteBuffersList<>(
+                    Utils.buildBuffersPool(Math.max(1, records.size()) * WideStringSerializer.SIZE),
+                    new WideStringSerializer());
+            list.addAll(records);
+            Collections.sort(records);
+            InPlaceParallelSort.pointerSort(list, Ordering.<String>natural());
+            assertEquals(records, list);
+        }
+    }
+
+    private static class WideStringSerializer implements NormalizedKeySerializer<String> {
+        private static final int SIZE = 128;
+
+        @Override
+        public int elementSize() {
+            return SIZE;
+        }
+
+        @Override
+        public void writeElement(ByteBuffer byteBuffer, int offset, String element) {
+            byte[] bytes = element.getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < SIZE; i++) {
+                byteBuffer.put(offset + i, i < bytes.length ? bytes[i] : 0);
+            }
+        }
+
+        @Override
+        public String readElement(ByteBuffer byteBuffer, int offset) {
+            byte[] bytes = new byte[SIZE];
+            int length = 0;
+            while (length < SIZE && byteBuffer.get(offset + length) != 0) {
+                bytes[length] = byteBuffer.get(offset + length);
+                length++;
+            }
+            return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public long keyPrefix(ByteBuffer byteBuffer, int offset) {
+            return byteBuffer.getLong(offset);
+        }
+    }
+
     private void checkSort(List<Long> expected) throws Exception {
         actual.clear();
         actual.addAll(expected);
+        LongBuffersList longs = new LongBuffersList(Utils.buildBuffersPool(Math.max(8, expected.size() * 8)));
+        for (long element : expected) {
+            longs.addLong(element);
+        }
+        ByteBuffersList<Long> radixSorted = new ByteBuffersList<>(
+                Utils.buildBuffersPool(Math.max(8, expected.size() * 8)), new LongSerializer());
+        radixSorted.addAll(expected);
+        ByteBuffersList<Long> rawSorted = new ByteBuffersList<>(
+                Utils.buildBuffersPool(Math.max(8, expected.size() * 8)), new LongSerializer());
+        rawSorted.addAll(expected);
         Collections.sort(expected);
         InPlaceParallelSort.sort(actual, Ordering.<Long>natural());
         assertEquals(expected, actual);
+        InPlaceParallelSort.sort(longs);
+        assertEquals(expected, longs);
+        InPlaceParallelSort.radixSort(radixSorted);
+        assertEquals(expected, radixSorted);
+        InPlaceParallelSort.rawSort(rawSorted, LongSerializer.NATURAL_ORDER);
+        assertEquals(expected, rawSorted);
     }
 }
@@ -0,0 +1,36 @@
+package aonuchin.sort;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+
+public class LoserTreeTest {
+
+    @Test
+    public void testMergeRandomRuns() throws Exception {
+        for (int k = 0; k < 40; k++) {
+            List<Long> expected = new ArrayList<>();
+            List<Iterator<Long>> runs = new ArrayList<>(k);
+            for (int i = 0; i < k; i++) {
+                List<Long> run = new ArrayList<>();
+                int runSize = ThreadLocalRandom.current().nextInt(100);
+                for (int j = 0; j < runSize; j++) {
+                    run.add(ThreadLocalRandom.current().nextLong(50));
+                }
+                Collections.sort(run);
+                expected.addAll(run);
+                runs.add(run.iterator());
+            }
+            Collections.sort(expected);
+            assertEquals(expected, Lists.newArrayList(new LoserTree<>(runs, Ordering.<Long>natural())));
+        }
+    }
+}
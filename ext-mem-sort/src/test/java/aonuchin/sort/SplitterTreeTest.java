@@ -0,0 +1,62 @@
+package aonuchin.sort;
+
+import com.google.common.collect.Ordering;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SplitterTreeTest {
+
+    @Test
+    public void testClassifyAsFloorOfPivots() throws Exception {
+        for (int buckets : new int[]{1, 2, 3, 7, 8, 9, 100}) {
+            for (long bound : new long[]{5, 1000}) {
+                List<Long> pivots = new ArrayList<>();
+                for (int i = 0; i < buckets; i++) {
+                    pivots.add(ThreadLocalRandom.current().nextLong(bound));
+                }
+                Collections.sort(pivots);
+                long[] longBlock = new long[SplitterTree.BLOCK_SIZE];
+                Long[] block = new Long[SplitterTree.BLOCK_SIZE];
+                for (int i = 0; i < block.length; i++) {
+                    longBlock[i] = ThreadLocalRandom.current().nextLong(-1, bound + 1);
+                    block[i] = longBlock[i];
+                }
+                int[] buckets1 = new int[block.length];
+                int[] buckets2 = new int[block.length];
+                boolean below = new SplitterTree<>(pivots, Ordering.<Long>natural()).classify(block, block.length, buckets1);
+                boolean longBelow = new LongSplitterTree(pivots).classify(longBlock, block.length, buckets2);
+
+                boolean expectedBelow = false;
+                for (int i = 0; i < block.length; i++) {
+                    long element = longBlock[i];
+                    expectedBelow |= element < pivots.get(0);
+                    int floor = 0;
+                    while (floor + 1 < buckets && pivots.get(floor + 1) <= element) {
+                        floor++;
+                    }
+                    int first = floor;
+                    while (first > 0 && pivots.get(first - 1).equals(pivots.get(floor))) {
+                        first--;
+                    }
+                    String message = pivots + " " + element;
+                    assertEquals(message, buckets1[i], buckets2[i]);
+                    if (first < floor && pivots.get(floor) == element) {
+                        // equal to a duplicated pivot, spread over all but the last of its buckets
+                        assertTrue(message, buckets1[i] >= first && buckets1[i] < floor);
+                    } else {
+                        assertEquals(message, floor, buckets1[i]);
+                    }
+                }
+                assertEquals(expectedBelow, below);
+                assertEquals(expectedBelow, longBelow);
+            }
+        }
+    }
+}
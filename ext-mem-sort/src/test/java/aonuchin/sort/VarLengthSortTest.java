@@ -0,0 +1,103 @@
+package aonuchin.sort;
+
+import aonuchin.Utils;
+import aonuchin.nio.StringSerializer;
+import aonuchin.nio.VarLengthChannelIterable;
+import aonuchin.nio.VarLengthChannelWriter;
+import com.google.common.collect.Ordering;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.assertEquals;
+
+public class VarLengthSortTest {
+    private static final int BUFFER_SIZE = 256;
+    private static final int MEMORY_SIZE = 2048;
+
+    private Path tmpDir;
+    private Path input;
+    private Path output;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = Files.createTempDirectory("sort-tmp");
+        input = Files.createTempFile("input", ".bin");
+        output = Files.createTempFile("output", ".bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(output);
+        Files.deleteIfExists(tmpDir);
+    }
+
+    @Test
+    public void testRandomStringsSort() throws Exception {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder record = new StringBuilder();
+            int length = ThreadLocalRandom.current().nextInt(12);
+            for (int j = 0; j < length; j++) {
+                record.append((char) ('a' + ThreadLocalRandom.current().nextInt(26)));
+            }
+            expected.add(record.toString());
+        }
+        checkSort(expected);
+    }
+
+    @Test
+    public void testEqualStringsSort() throws Exception {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            expected.add(i % 1000 == 0 ? "a" : "equal");
+        }
+        checkSort(expected);
+    }
+
+    @Test
+    public void testEmptySort() throws Exception {
+        checkSort(new ArrayList<String>());
+    }
+
+    private void checkSort(List<String> expected) throws Exception {
+        checkSort(expected, ExternalMemorySort.Strategy.DISTRIBUTION);
+        checkSort(expected, ExternalMemorySort.Strategy.MERGE);
+    }
+
+    private void checkSort(List<String> expected, ExternalMemorySort.Strategy strategy) throws Exception {
+        StringSerializer serializer = new StringSerializer();
+        try (VarLengthChannelWriter<String> writer = new VarLengthChannelWriter<>(serializer,
+                ByteBuffer.allocateDirect(BUFFER_SIZE), Files.newByteChannel(input, WRITE, CREATE, TRUNCATE_EXISTING))) {
+            for (String element : expected) {
+                writer.writeElement(element);
+            }
+        }
+        new VarLengthSort<>(serializer, Utils.buildBuffersPool(MEMORY_SIZE), BUFFER_SIZE, tmpDir)
+                .withStrategy(strategy)
+                .sort(input, output, Ordering.<String>natural());
+
+        List<String> sortedExpected = new ArrayList<>(expected);
+        Collections.sort(sortedExpected);
+        List<String> actual = new ArrayList<>(expected.size());
+        try (VarLengthChannelIterable<String> sorted = new VarLengthChannelIterable<>(Files.newByteChannel(output),
+                ByteBuffer.allocateDirect(BUFFER_SIZE), serializer)) {
+            for (String element : sorted) {
+                actual.add(element);
+            }
+        }
+        assertEquals(sortedExpected, actual);
+    }
+}